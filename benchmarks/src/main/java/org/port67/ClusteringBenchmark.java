@@ -0,0 +1,91 @@
+package io.github.patrickdoc;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One pass of each stage per measurement, the large sizes take seconds
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ClusteringBenchmark {
+
+    private static final long SEED = 42;
+
+    @State(Scope.Benchmark)
+    public static class Graph {
+        @Param({"1000", "5000", "20000"})
+        int nodes;
+
+        // Average outgoing dependencies per class
+        @Param({"4", "16"})
+        int degree;
+
+        DependencyMatrix deps;
+        Path dotFile;
+        Hclust cluster;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            deps = SyntheticGraphs.generate(nodes, degree, SEED);
+            dotFile = Files.createTempFile("auto-cluster-benchmark", ".dot");
+            SyntheticGraphs.writeDot(deps, dotFile);
+            cluster = Hclust.fromDistanceMatrix(DistanceMatrix.fromDependencyMatrix(deps));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(dotFile);
+        }
+    }
+
+    // Clustering consumes its distance matrix, so each pass gets a fresh one
+    @State(Scope.Thread)
+    public static class Distances {
+        DistanceMatrix distances;
+
+        @Setup(Level.Invocation)
+        public void setUp(Graph graph) {
+            distances = DistanceMatrix.fromDependencyMatrix(graph.deps);
+        }
+    }
+
+    @Benchmark
+    public DependencyMatrix dotFile(Graph graph) throws IOException {
+        return DependencyMatrix.fromDotFile(graph.dotFile.toString());
+    }
+
+    @Benchmark
+    public DistanceMatrix distanceMatrix(Graph graph) {
+        return DistanceMatrix.fromDependencyMatrix(graph.deps);
+    }
+
+    @Benchmark
+    public Hclust nnChain(Distances distances) {
+        return Hclust.fromDistanceMatrix(distances.distances);
+    }
+
+    @Benchmark
+    public FileCluster fileTree(Graph graph) {
+        return FileCluster.fromHclust(graph.cluster);
+    }
+}
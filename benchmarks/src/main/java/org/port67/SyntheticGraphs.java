@@ -0,0 +1,68 @@
+package io.github.patrickdoc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Map;
+import java.util.Random;
+
+// Seeded dependency graphs shaped like a code base: classes sit in packages
+// of about 20 and most of their dependencies stay inside their package
+public class SyntheticGraphs {
+
+    private static final int PACKAGE_SIZE = 20;
+    private static final double LOCAL_FRACTION = 0.8;
+
+    private SyntheticGraphs() {
+    }
+
+    public static DependencyMatrix generate(int n, int degree, long seed) {
+        Random random = new Random(seed);
+        DependencyMatrix result = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            result.nodeIds.put("p" + (i / PACKAGE_SIZE) + ".C" + i, i);
+        }
+
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int i = 0; i < n; i++) {
+            int packageStart = (i / PACKAGE_SIZE) * PACKAGE_SIZE;
+            int packageSize = Math.min(PACKAGE_SIZE, n - packageStart);
+            for (int e = 0; e < degree; e++) {
+                int dest = random.nextDouble() < LOCAL_FRACTION
+                    ? packageStart + random.nextInt(packageSize)
+                    : random.nextInt(n);
+                if (dest != i) {
+                    edges.addEdge(i, dest);
+                }
+            }
+        }
+        result.dependencies = edges.build(n);
+
+        return result;
+    }
+
+    // The same graph in the dot format ClassGraph generates
+    public static void writeDot(DependencyMatrix deps, Path dotFile) throws IOException {
+        String[] names = new String[deps.nodeIds.size()];
+        for (Map.Entry<String, Integer> e : deps.nodeIds.entrySet()) {
+            names[e.getValue()] = e.getKey();
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(dotFile)) {
+            writer.write("digraph {\nsize=\"10.5,8.0\";\n");
+            for (String name : names) {
+                writer.write("\"" + name + "\"[shape=box,style=filled,fillcolor=\"#fff2b6\"];\n");
+            }
+            writer.write("\n");
+            for (int i = 0; i < names.length; i++) {
+                for (int k = 0; k < deps.dependencies.degree(i); k++) {
+                    writer.write("  \"" + names[i] + "\" -> \"" + names[deps.dependencies.neighbour(i, k)] + "\"\n");
+                }
+            }
+            writer.write("}\n");
+        }
+    }
+}
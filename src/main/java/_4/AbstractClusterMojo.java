@@ -0,0 +1,269 @@
+package io.github.patrickdoc;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import io.github.classgraph.ClassGraph;
+import io.github.classgraph.ClassInfoList;
+import io.github.classgraph.ScanResult;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public abstract class AbstractClusterMojo extends AbstractMojo {
+
+    private final boolean forked;
+
+    @Parameter( defaultValue = "${project}" )
+    private MavenProject project;
+
+    @Parameter( defaultValue = "${project.groupId}", property = "basePackages", required = true )
+    private String[] basePackages;
+
+    // classpath scans the runtime classpath, project only the project's own output directory
+    @Parameter( defaultValue = "classpath", property = "scanScope", required = true )
+    private String scanScope;
+
+    // Read only changed class files and jars of the scan scope, keeping their references between runs
+    @Parameter( defaultValue = "false", property = "incrementalScan" )
+    private boolean incrementalScan;
+
+    @Parameter( defaultValue = "${project.build.directory}/auto-cluster", property = "cacheDirectory" )
+    private File cacheDirectory;
+
+    // Reuse the last dendrogram when the graph and clustering options are unchanged
+    @Parameter( defaultValue = "true", property = "resultCache" )
+    private boolean resultCache;
+
+    @Parameter( defaultValue = "true", property = "dryRun", required = true )
+    private boolean dryRun;
+
+    // Dry runs either copy a preview into src/main (preview) or only write a move plan (plan)
+    @Parameter( defaultValue = "preview", property = "dryRunMode", required = true )
+    private String dryRunMode;
+
+    // Where the plan and dendrogram of a plan-only dry run are written
+    @Parameter( defaultValue = "${project.build.directory}/auto-cluster", property = "reportDirectory" )
+    private File reportDirectory;
+
+    // Threads for the distance computation, 0 uses all available processors
+    @Parameter( defaultValue = "0", property = "threads" )
+    private int threads;
+
+    // One of single, complete, average, weighted, ward, centroid or median
+    @Parameter( defaultValue = "complete", property = "linkage", required = true )
+    private String linkage;
+
+    // Cluster weakly connected components separately and join them at the top
+    @Parameter( defaultValue = "false", property = "splitComponents" )
+    private boolean splitComponents;
+
+    // Merge all reciprocal nearest neighbours of a round at once on all threads,
+    // exactly the sequential tree for single and complete linkage
+    @Parameter( defaultValue = "false", property = "parallelMerge" )
+    private boolean parallelMerge;
+
+    // Keep the distance matrix in a memory mapped file in cacheDirectory, for
+    // graphs whose matrix doesn't fit in the heap. Also picked when an on-heap
+    // matrix doesn't fit the memory budget.
+    @Parameter( defaultValue = "false", property = "outOfCore" )
+    private boolean outOfCore;
+
+    // Heap the clustering may use, e.g. 512m or 4g, capped at the free heap.
+    // The engine is picked to fit it, preferring on-heap over mapped distances.
+    @Parameter( property = "memoryBudget" )
+    private String memoryBudget;
+
+    // Let the memory budget fall back to component-split clustering, which
+    // only approximates the exact dendrogram
+    @Parameter( defaultValue = "false", property = "allowSplit" )
+    private boolean allowSplit;
+
+    protected AbstractClusterMojo(boolean forked) {
+        this.forked = forked;
+    }
+
+    public void execute() throws MojoFailureException {
+        if (!forked) {
+            AbstractDotMojo.requireCompiledClasses(project);
+        }
+
+        try {
+            String mode = dryRunMode.trim().toLowerCase(Locale.ROOT);
+            if (!mode.equals("preview") && !mode.equals("plan")) {
+                throw new IllegalArgumentException("Unknown dryRunMode '" + dryRunMode + "', expected preview or plan");
+            }
+
+            RunMetrics metrics = new RunMetrics();
+            DependencyMatrix deps = incrementalScan ? scanIncrementally(metrics) : scan(metrics);
+            metrics.count("nodes", deps.nodeIds.size());
+            metrics.count("edges", deps.dependencies.edgeCount());
+
+            ClusterOptions options = new ClusterOptions()
+                .setLinkage(Linkage.fromName(linkage))
+                .setThreads(threads)
+                .setParallelMerge(parallelMerge)
+                .setMetrics(metrics);
+            Hclust hClust = resultCache ? clusterCached(deps, options) : cluster(deps, options, plan(deps, options));
+            metrics.count("merges", hClust.dendrogram.size());
+            // Each stage only needs the output of the one before
+            deps = null;
+
+            FileCluster fileClust;
+            try (RunMetrics.Stage stage = metrics.stage("tree")) {
+                fileClust = FileCluster.fromHclust(hClust).setMetrics(metrics);
+            }
+            hClust = null;
+
+            // Relative to the module, not to where the build was started
+            Path sourceDirectory = Paths.get(project.getBuild().getSourceDirectory());
+            int files;
+            try (RunMetrics.Stage stage = metrics.stage("files")) {
+                if (dryRun && mode.equals("plan")) {
+                    files = fileClust.writePlan(sourceDirectory, reportDirectory.toPath());
+                    getLog().info("Planned " + files + " source files in " + reportDirectory);
+                } else {
+                    files = fileClust.writeFiles(sourceDirectory, dryRun);
+                    getLog().info((dryRun ? "Previewed " : "Moved ") + files + " source files");
+                }
+            }
+            metrics.count("files", files);
+            metrics.finish();
+
+            for (String line : metrics.lines()) {
+                getLog().info(line);
+            }
+            metrics.write(reportDirectory.toPath().resolve("metrics.json"));
+        } catch (MojoFailureException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MojoFailureException("Error in clustering", e);
+        }
+    }
+
+    private MemoryPlan plan(DependencyMatrix deps, ClusterOptions options) throws IOException, MojoFailureException {
+        Runtime runtime = Runtime.getRuntime();
+        long budget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (memoryBudget != null && !memoryBudget.trim().isEmpty()) {
+            budget = Math.min(budget, MemoryPlan.parseBytes(memoryBudget));
+        }
+        Files.createDirectories(cacheDirectory.toPath());
+        long disk = cacheDirectory.getUsableSpace();
+
+        List<MemoryPlan> candidates = MemoryPlan.candidates(deps, options, splitComponents, allowSplit, outOfCore);
+        MemoryPlan plan = MemoryPlan.choose(candidates, budget, disk);
+        if (plan == null) {
+            MemoryPlan smallest = candidates.get(0);
+            for (MemoryPlan candidate : candidates) {
+                if (candidate.heapBytes < smallest.heapBytes) {
+                    smallest = candidate;
+                }
+            }
+            throw new MojoFailureException("Clustering " + deps.nodeIds.size() + " classes does not fit a budget of "
+                                           + MemoryPlan.megabytes(budget) + " heap and "
+                                           + MemoryPlan.megabytes(disk) + " disk, the smallest option needs "
+                                           + smallest.describe() + ". Raise memoryBudget and -Xmx, narrow basePackages"
+                                           + (splitComponents || allowSplit ? "." : ", or set allowSplit."));
+        }
+        if (plan.split && !splitComponents) {
+            // Only with allowSplit, the dendrogram now depends on the machine's memory
+            getLog().warn("Exact clustering does not fit a memory budget of " + MemoryPlan.megabytes(budget)
+                          + ", falling back to component-split clustering, which only approximates it");
+        }
+        getLog().info("Memory budget " + MemoryPlan.megabytes(budget) + ", using " + plan.describe());
+        options.getMetrics().count("estimatedHeapBytes", plan.heapBytes);
+        return plan;
+    }
+
+    private Hclust cluster(DependencyMatrix deps, ClusterOptions options, MemoryPlan plan) throws Exception {
+        plan.apply(options, cacheDirectory.toPath());
+        if (plan.split) {
+            // Components are clustered concurrently, so only the whole is timed
+            try (RunMetrics.Stage stage = options.getMetrics().stage("components")) {
+                return Hclust.fromComponents(deps, options);
+            }
+        }
+        return Hclust.fromDependencyMatrix(deps, options);
+    }
+
+    private Hclust clusterCached(DependencyMatrix deps, ClusterOptions options) throws Exception {
+        Path cacheFile = cacheDirectory.toPath().resolve("dendrogram.bin");
+
+        // An exact result is reused before anything is planned. A split one
+        // only when splitting is forced or the memory plan still has to
+        // split, so a stale split result isn't reused once exact fits.
+        Hclust cached = loadCached(cacheFile, deps, options, splitComponents);
+        if (cached != null) {
+            return cached;
+        }
+        MemoryPlan plan = plan(deps, options);
+        if (plan.split && !splitComponents) {
+            cached = loadCached(cacheFile, deps, options, true);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Hclust result = cluster(deps, options, plan);
+        DendrogramCache.save(cacheFile, DendrogramCache.fingerprint(deps, options, plan.split), result);
+        return result;
+    }
+
+    private Hclust loadCached(Path cacheFile, DependencyMatrix deps, ClusterOptions options, boolean split) {
+        Hclust cached = DendrogramCache.load(cacheFile, DendrogramCache.fingerprint(deps, options, split));
+        if (cached != null) {
+            getLog().info("Dependency graph unchanged, reusing the last dendrogram");
+            options.getMetrics().count("cacheHit", 1);
+        }
+        return cached;
+    }
+
+    private DependencyMatrix scan(RunMetrics metrics) throws Exception {
+        DotMojo dot = new DotMojo();
+        dot.setProject(project);
+        dot.setBasePackages(basePackages);
+        dot.setScanScope(scanScope);
+
+        ScanResult result;
+        try (RunMetrics.Stage stage = metrics.stage("scan")) {
+            result = dot.scan();
+        }
+        try (ScanResult scanned = result; RunMetrics.Stage stage = metrics.stage("dependencyMatrix")) {
+            return DependencyMatrix.fromClassInfoList(DotMojo.topLevelClasses(scanned));
+        }
+    }
+
+    private DependencyMatrix scanIncrementally(RunMetrics metrics) throws Exception {
+        // The same classpath as a full scan for the scan scope
+        DotMojo dot = new DotMojo();
+        dot.setProject(project);
+        dot.setScanScope(scanScope);
+        List<Path> classpath = new ArrayList<>();
+        for (String element : dot.classpath()) {
+            classpath.add(Paths.get(element));
+        }
+
+        ScanCache cache;
+        try (RunMetrics.Stage stage = metrics.stage("scan")) {
+            cache = ScanCache.load(cacheDirectory.toPath().resolve("scan-cache.bin"));
+            cache.refresh(classpath, basePackages);
+            cache.save();
+        }
+        getLog().info("Read " + cache.read + " changed class files, reused " + cache.reused);
+        metrics.count("classFilesRead", cache.read);
+
+        try (RunMetrics.Stage stage = metrics.stage("dependencyMatrix")) {
+            return cache.toDependencyMatrix(basePackages);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.patrickdoc;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import io.github.classgraph.ClassGraph;
+import io.github.classgraph.ClassInfoList;
+import io.github.classgraph.ScanResult;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.Locale;
+import java.util.stream.Stream;
+
+public abstract class AbstractDotMojo extends AbstractMojo {
+
+    private final boolean forked;
+
+    @Parameter( defaultValue = "${project}" )
+    private MavenProject project;
+
+    @Parameter( defaultValue = "${project.groupId}", property = "basePackages", required = true )
+    private String[] basePackages;
+
+    // classpath scans the runtime classpath, project only the project's own output directory
+    @Parameter( defaultValue = "classpath", property = "scanScope", required = true )
+    private String scanScope;
+
+    @Parameter( defaultValue = "cluster.dot", property = "outputFile", required = true )
+    private String outputFile;
+
+    protected AbstractDotMojo(boolean forked) {
+        this.forked = forked;
+    }
+
+    public void execute() throws MojoFailureException {
+        if (!forked) {
+            requireCompiledClasses(project);
+        }
+
+        try (ScanResult result = scan()) {
+            String graphDot = topLevelClasses(result).generateGraphVizDotFileFromInterClassDependencies();
+
+            Path path = Paths.get(outputFile);
+            byte[] strToBytes = graphDot.getBytes();
+
+            Files.write(path, strToBytes);
+        } catch (Exception e) {
+            throw new MojoFailureException("Error generating dot file", e);
+        }
+    }
+
+    public ScanResult scan() throws DependencyResolutionRequiredException {
+        ClassGraph graph = new ClassGraph();
+        graph.enableAllInfo();
+        graph.acceptPackages(basePackages);
+        graph.enableInterClassDependencies();
+        graph.overrideClasspath(classpath());
+
+        return graph.scan();
+    }
+
+    String[] classpath() throws DependencyResolutionRequiredException {
+        String scope = scanScope == null ? "classpath" : scanScope.trim().toLowerCase(Locale.ROOT);
+        if (scope.equals("project")) {
+            // Only the module's own classes, dependency jars aren't opened. Classes
+            // in the base packages that live in a dependency, e.g. a sibling
+            // module, are left out of the graph.
+            return new String[] {project.getBuild().getOutputDirectory()};
+        } else if (scope.equals("classpath")) {
+            return project.getRuntimeClasspathElements().toArray(new String[0]);
+        }
+        throw new IllegalArgumentException("Unknown scanScope '" + scanScope + "', expected classpath or project");
+    }
+
+    public static void requireCompiledClasses(MavenProject project) throws MojoFailureException {
+        // Without the forked compile the classes have to be there already
+        Path classes = Paths.get(project.getBuild().getOutputDirectory());
+        boolean found = false;
+        if (Files.isDirectory(classes)) {
+            try (Stream<Path> files = Files.walk(classes)) {
+                found = files.anyMatch(file -> file.getFileName().toString().endsWith(".class"));
+            } catch (IOException e) {
+                throw new MojoFailureException("Error reading " + classes, e);
+            }
+        }
+
+        if (!found) {
+            throw new MojoFailureException("No compiled classes in " + classes
+                                           + ", run the compile phase first or use the forking goal");
+        }
+    }
+
+    public static ClassInfoList topLevelClasses(ScanResult result) {
+        return result.getAllClasses()
+            .filter(classInfo -> !classInfo.isInnerClass());
+    }
+
+    public void removeDotFile() throws IOException {
+        Files.delete(Paths.get(outputFile));
+    }
+
+    public void setProject(MavenProject project) {
+        this.project = project;
+    }
+
+    public void setBasePackages(String[] basePackages) {
+        this.basePackages = basePackages;
+    }
+
+    public void setScanScope(String scanScope) {
+        this.scanScope = scanScope;
+    }
+
+    public void setOutputFile(String outputFile) {
+        this.outputFile = outputFile;
+    }
+}
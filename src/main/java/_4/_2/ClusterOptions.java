@@ -0,0 +1,78 @@
+package io.github.patrickdoc;
+
+import java.nio.file.Path;
+
+// Settings that pick the clustering algorithm and how it runs
+public class ClusterOptions {
+
+    Linkage linkage = Linkage.COMPLETE;
+    int threads = 1;
+    boolean parallelMerge = false;
+    Path mapDirectory = null;
+    boolean denseRows = true;
+    RunMetrics metrics = new RunMetrics();
+
+    public ClusterOptions setLinkage(Linkage linkage) {
+        this.linkage = linkage;
+        return this;
+    }
+
+    // 0 uses all available processors
+    public ClusterOptions setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    // Merge all reciprocal nearest neighbours of a round at once
+    public ClusterOptions setParallelMerge(boolean parallelMerge) {
+        this.parallelMerge = parallelMerge;
+        return this;
+    }
+
+    // Keep distance matrices in memory mapped files here instead of on the heap
+    public ClusterOptions setMapDirectory(Path mapDirectory) {
+        this.mapDirectory = mapDirectory;
+        return this;
+    }
+
+    // Allow packing dependency rows into bits when the graph is dense enough
+    public ClusterOptions setDenseRows(boolean denseRows) {
+        this.denseRows = denseRows;
+        return this;
+    }
+
+    public ClusterOptions setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public Linkage getLinkage() {
+        return linkage;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public Path getMapDirectory() {
+        return mapDirectory;
+    }
+
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int parallelism() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Copies run elsewhere, e.g. per component, so they record into their own metrics
+    public ClusterOptions copy() {
+        return new ClusterOptions()
+            .setLinkage(linkage)
+            .setThreads(threads)
+            .setParallelMerge(parallelMerge)
+            .setMapDirectory(mapDirectory)
+            .setDenseRows(denseRows);
+    }
+}
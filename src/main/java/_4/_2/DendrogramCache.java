@@ -0,0 +1,136 @@
+package io.github.patrickdoc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The last dendrogram, stored with a fingerprint of the graph and options it
+// was built from, so an unchanged graph skips distances and clustering
+public class DendrogramCache {
+
+    private static final int VERSION = 2;
+
+    private DendrogramCache() {
+    }
+
+    public static String fingerprint(DependencyMatrix deps, ClusterOptions options, boolean splitComponents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE ships SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        // Threads only count through the merge engine they pick, the parallel
+        // merge can order equal merges differently than the chain
+        update(digest, VERSION);
+        update(digest, options.getLinkage().name());
+        update(digest, splitComponents ? 1 : 0);
+        update(digest, options.parallelMerge && options.parallelism() > 1 ? 1 : 0);
+
+        // Nodes in id order, then each row of sorted neighbours
+        String[] names = new String[deps.nodeIds.size()];
+        for (Map.Entry<String, Integer> e : deps.nodeIds.entrySet()) {
+            names[e.getValue()] = e.getKey();
+        }
+        update(digest, names.length);
+        for (String name : names) {
+            update(digest, name);
+        }
+        for (int i = 0; i < names.length; i++) {
+            int degree = deps.dependencies.degree(i);
+            update(digest, degree);
+            for (int k = 0; k < degree; k++) {
+                update(digest, deps.dependencies.neighbour(i, k));
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // The cached dendrogram, or null if there is none for this fingerprint
+    public static Hclust load(Path cacheFile, String fingerprint) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(fingerprint)) {
+                return null;
+            }
+
+            int n = in.readInt();
+            Map<Integer, String> labels = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                labels.put(i, in.readUTF());
+            }
+
+            int rows = in.readInt();
+            List<Hclust.Triplet> dendrogram = new ArrayList<>(rows);
+            for (int k = 0; k < rows; k++) {
+                dendrogram.add(new Hclust.Triplet(in.readInt(), in.readInt(), in.readInt()));
+            }
+            return new Hclust(dendrogram, labels);
+        } catch (IOException e) {
+            // Unreadable or truncated, cluster again
+            return null;
+        }
+    }
+
+    public static void save(Path cacheFile, String fingerprint, Hclust cluster) throws IOException {
+        Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+
+            int n = cluster.nodeLabels.size();
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                out.writeUTF(cluster.nodeLabels.get(i));
+            }
+
+            out.writeInt(cluster.dendrogram.size());
+            for (Hclust.Triplet triplet : cluster.dendrogram) {
+                out.writeInt(triplet.a);
+                out.writeInt(triplet.b);
+                out.writeInt(triplet.distance);
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void update(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        update(digest, bytes.length);
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.patrickdoc;
+
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+// Scans the existing target/classes instead of forking a compile, for use after compile
+@Mojo( name = "dot-no-fork", defaultPhase = LifecyclePhase.PROCESS_CLASSES,
+       requiresDependencyResolution = ResolutionScope.RUNTIME )
+public class DotNoForkMojo extends AbstractDotMojo {
+
+    public DotNoForkMojo() {
+        super(false);
+    }
+}
@@ -1,15 +1,20 @@
 package io.github.patrickdoc;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
-import java.nio.file.CopyOption;
+import java.lang.reflect.Method;
+
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.FileVisitResult;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -18,15 +23,27 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class FileCluster {
 
+    private static final int MAX_COPY_THREADS = 32;
+
     public final BinaryTree tree;
+    // Copy and move threads record into these
+    private RunMetrics metrics = new RunMetrics();
 
     private FileCluster(BinaryTree tree, Map<Integer, String> nodeLabels) {
         this.tree = tree;
@@ -36,51 +53,153 @@ public class FileCluster {
 
         Hclust.Triplet[] dendrogram = cluster.dendrogram.toArray(new Hclust.Triplet[0]);
 
-        return new FileCluster(treeBuilder(dendrogram, cluster.nodeLabels, cluster.dendrogram.size() - 1),
-                               cluster.nodeLabels);
+        return new FileCluster(treeBuilder(dendrogram, cluster.nodeLabels), cluster.nodeLabels);
+
+    }
 
+    public FileCluster setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+        return this;
     }
 
-    public void writeFiles(boolean dryRun) throws IOException {
+    public int writeFiles(Path sourceDir, boolean dryRun) throws IOException {
         // Delete any existing temp folders
-        removeFolder(Paths.get("src/main/"), "auto-cluster-maven-plugin");
+        Path previewDir = sourceDir.toAbsolutePath().getParent();
+        if (Files.isDirectory(previewDir)) {
+            removeFolder(previewDir, "auto-cluster-maven-plugin");
+        }
+
+        SourceIndex sources = SourceIndex.build(sourceDir);
+
+        if (dryRun) {
+            // Preview next to the sources, sharing file contents where the file system allows
+            Path destPath = Files.createTempDirectory(previewDir, "auto-cluster-maven-plugin");
+            Layout layout = layout(sources, destPath);
+            layout.createDirectories();
+            transferAll(layout.files, FileCluster::linkOrCopy, "link", metrics.threadFactory());
+            return layout.files.size();
+        } else {
+            // Only rename the files whose cluster path changed
+            return applyInPlace(layout(sources, sourceDir), metrics.threadFactory());
+        }
+    }
 
-        String sourceDir = "src/main/java";
+    public int writePlan(Path sourceDir, Path outputDir) throws IOException {
+        // Only reads the sources, everything is written to the output directory
+        Layout layout = layout(SourceIndex.build(sourceDir), sourceDir);
+        Files.createDirectories(outputDir);
 
-        Path destPath = Files.createTempDirectory(Paths.get("src/main"), "auto-cluster-maven-plugin");
-        String destDir = "src/main/" + destPath.getFileName();
+        try (BufferedWriter plan = Files.newBufferedWriter(outputDir.resolve("plan.csv"))) {
+            plan.write("source,target,changed\n");
+            for (Path[] move : layout.files) {
+                plan.write(csv(move[0].toString()) + "," + csv(move[1].toString()) + ","
+                           + !move[0].normalize().equals(move[1].normalize()) + "\n");
+            }
+        }
 
-        writeTree(tree, sourceDir, destDir, -1);
+        try (BufferedWriter dendrogram = Files.newBufferedWriter(outputDir.resolve("dendrogram.csv"))) {
+            // Leaves are written as class names and merged clusters by row
+            dendrogram.write("row,left,right,height\n");
+            for (int k = 0; k < tree.rows(); k++) {
+                dendrogram.write(k + "," + csv(node(tree.left(k))) + "," + csv(node(tree.right(k))) + ","
+                                 + tree.value(k) + "\n");
+            }
+        }
 
-        if (!dryRun) {
-            // Delete all java files and empty directories from source
-            removeJavaFiles(Paths.get(sourceDir));
+        return layout.files.size();
+    }
 
-            // Move new structure over
-            moveFolder(destPath, Paths.get(sourceDir), StandardCopyOption.REPLACE_EXISTING);
+    private String node(int node) {
+        return tree.isLeaf(node) ? tree.name(node) : Integer.toString(node);
+    }
 
-            // Delete temp folder
-            removeFolder(destPath, "");
+    private static String csv(String field) {
+        String value = field.replace(File.separatorChar, '/');
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
         }
+        return '"' + value.replace("\"", "\"\"") + '"';
     }
 
-    public void moveFolder(Path source, Path target, CopyOption... options) throws IOException {
-        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+    Layout layout(SourceIndex sources, Path root) throws IOException {
+        Layout layout = new Layout(root);
+        planTree(tree, sources, root, layout.directories, layout.files);
+        return layout;
+    }
 
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                    throws IOException {
-                Files.createDirectories(target.resolve(source.relativize(dir)));
-                return FileVisitResult.CONTINUE;
+    static int applyInPlace(Layout layout) throws IOException {
+        return applyInPlace(layout, Executors.defaultThreadFactory());
+    }
+
+    static int applyInPlace(Layout layout, ThreadFactory threads) throws IOException {
+        Map<Path, Integer> bySource = new HashMap<>();
+        Map<Path, Path> byDest = new HashMap<>();
+        for (int i = 0; i < layout.files.size(); i++) {
+            Path[] move = layout.files.get(i);
+            Integer planned = bySource.put(move[0].normalize(), i);
+            if (planned != null) {
+                throw new IOException(move[0] + " would be moved to both " + layout.files.get(planned)[1] + " and "
+                                      + move[1]);
             }
+            Path other = byDest.put(move[1].normalize(), move[0]);
+            if (other != null) {
+                throw new IOException("Both " + other + " and " + move[0] + " would be moved to " + move[1]);
+            }
+        }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                    throws IOException {
-                Files.move(file, target.resolve(source.relativize(file)), options);
-                return FileVisitResult.CONTINUE;
+        // Files already at their planned path are left alone
+        List<Path[]> moves = new ArrayList<>();
+        Set<Path> targets = new LinkedHashSet<>();
+        Set<Path> vacated = new LinkedHashSet<>();
+        for (Path[] move : layout.files) {
+            Path source = move[0].normalize();
+            Path dest = move[1].normalize();
+            if (!source.equals(dest)) {
+                moves.add(move);
+                targets.add(dest.getParent());
+                vacated.add(source.getParent());
             }
-        });
+        }
+        if (moves.isEmpty()) {
+            return 0;
+        }
+
+        // A rename replaces whatever is at the destination, so anything there
+        // that the plan doesn't move away first stops the run before any move
+        List<Throwable> occupied = new ArrayList<>();
+        for (Path[] move : moves) {
+            if (!bySource.containsKey(move[1].normalize()) && Files.exists(move[1], LinkOption.NOFOLLOW_LINKS)) {
+                occupied.add(new FileAlreadyExistsException(move[1].toString(), move[0].toString(), null));
+            }
+        }
+        if (!occupied.isEmpty()) {
+            IOException error = new IOException(occupied.size() + " planned paths already hold files that are not "
+                                                + "part of the plan, nothing was moved");
+            occupied.forEach(error::addSuppressed);
+            throw error;
+        }
+
+        // A destination that still holds another pending source is freed by
+        // renaming that source aside first, which also breaks any cycles
+        for (Path[] move : moves) {
+            Integer occupant = bySource.remove(move[1].normalize());
+            if (occupant != null) {
+                Path[] blocked = layout.files.get(occupant);
+                Path aside = blocked[0].resolveSibling(blocked[0].getFileName() + ".auto-cluster-tmp");
+                atomicMove(blocked[0], aside);
+                blocked[0] = aside;
+            }
+        }
+
+        for (Path target : targets) {
+            Files.createDirectories(target);
+        }
+        transferAll(moves, FileCluster::atomicMove, "move", threads);
+
+        for (Path directory : vacated) {
+            pruneEmptyParents(directory, layout.root.normalize());
+        }
+        return moves.size();
     }
 
     public void removeFolder(Path source, String prefix) throws IOException {
@@ -100,112 +219,253 @@ public class FileCluster {
         });
     }
 
-    public void removeJavaFiles(Path source) throws IOException {
-        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+    static void pruneEmptyParents(Path directory, Path root) throws IOException {
+        // Walk up from a vacated directory until one still has content
+        for (Path dir = directory; dir != null && !dir.equals(root) && dir.startsWith(root); dir = dir.getParent()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                // Still holds sources or non-Java files
+                return;
+            }
+        }
+    }
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc)
-                    throws IOException {
-                if (exc != null) {
-                    throw exc;
+    private static void planTree(BinaryTree tree, SourceIndex sources, Path root,
+                                 List<Path> directories, List<Path[]> copies) throws IOException {
+        if (tree.leaves() == 0) {
+            return;
+        }
+
+        // Pre-order walk with an explicit stack, so parents are planned before children
+        int[] nodes = new int[tree.rows() + 1];
+        Path[] paths = new Path[tree.rows() + 1];
+        int top = 0;
+        nodes[top] = tree.root();
+        paths[top++] = root;
+
+        while (top > 0) {
+            int node = nodes[--top];
+            Path destDirectory = paths[top];
+            paths[top] = null;
+
+            if (tree.isLeaf(node)) {
+                // File
+                String className = tree.name(node);
+                Path source = sources.find(className);
+                if (source == null) {
+                    // No source file, e.g. generated code, or no unique match
+                    continue;
                 }
 
+                String name = className.substring(className.lastIndexOf('.') + 1) + ".java";
+                copies.add(new Path[] {source, destDirectory.resolve(name)});
+            } else {
+                // Directory, merged into its parent when the heights match
+                Path newDirectory = destDirectory;
+                if (node == tree.root() || tree.value(node) != tree.value(tree.parent(node))) {
+                    newDirectory = destDirectory.resolve("_" + Integer.toString(tree.value(node)));
+                    directories.add(newDirectory);
+                }
+
+                nodes[top] = tree.right(node);
+                paths[top++] = newDirectory;
+                nodes[top] = tree.left(node);
+                paths[top++] = newDirectory;
+            }
+        }
+    }
+
+    static void copy(Path source, Path dest) throws IOException {
+        Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void linkOrCopy(Path source, Path dest) throws IOException {
+        try {
+            Files.createLink(dest, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            // e.g. FAT volumes, or the preview lives on another device
+            copy(source, dest);
+        }
+    }
+
+    static void atomicMove(Path source, Path dest) throws IOException {
+        try {
+            Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, dest);
+        }
+    }
+
+    static void transferAll(List<Path[]> transfers, Transfer transfer, String action) throws IOException {
+        transferAll(transfers, transfer, action, Executors.defaultThreadFactory());
+    }
+
+    static void transferAll(List<Path[]> transfers, Transfer transfer, String action, ThreadFactory threads)
+            throws IOException {
+        if (transfers.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = ioExecutor(transfers.size(), threads);
+        List<Future<?>> pending = new ArrayList<>(transfers.size());
+        try {
+            for (Path[] paths : transfers) {
+                pending.add(executor.submit(() -> {
+                    transfer.apply(paths[0], paths[1]);
+                    return null;
+                }));
+            }
+
+            // Wait for every transfer so that all failures are reported together
+            List<Throwable> failures = new ArrayList<>();
+            for (Future<?> future : pending) {
                 try {
-                    Files.delete(dir);
-                } catch (DirectoryNotEmptyException e) {
-                    // Don't do anything if the directory contains non-Java files
+                    future.get();
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing source files");
                 }
-                return FileVisitResult.CONTINUE;
             }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                    throws IOException {
-                if (file.getFileName().toString().endsWith(".java")) {
-                    Files.delete(file);
+            if (!failures.isEmpty()) {
+                IOException error = new IOException("Failed to " + action + " " + failures.size() + " of "
+                                                    + transfers.size() + " source files");
+                for (Throwable failure : failures) {
+                    error.addSuppressed(failure);
                 }
-                return FileVisitResult.CONTINUE;
+                throw error;
             }
-        });
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
+    private static ExecutorService ioExecutor(int tasks, ThreadFactory factory) {
+        // Virtual threads are cheap enough to park one per copy (Java 21+)
+        try {
+            Method perTask = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) perTask.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Older runtime, use a bounded platform pool instead
+        }
 
-    private void writeTree(BinaryTree sourceTree, String sourceDirectory, String destDirectory, int lastValue) throws IOException {
-        if (sourceTree.name != null) {
-            // File
-            String path = sourceTree.name.replaceAll("\\.", "/");
-            path += ".java";
-            String classFileName = path.substring(path.lastIndexOf("/") + 1);
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        threads = Math.min(tasks, Math.min(threads, MAX_COPY_THREADS));
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = factory.newThread(r);
+            thread.setName("auto-cluster-copy");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-            List<Path> sources = Files.find(Paths.get(sourceDirectory),
-                                            10000,
-                                            ((filePath, fileAttrs) -> classFileName.equals(filePath.getFileName().toString())))
-                .collect(Collectors.toList());
+    private static BinaryTree treeBuilder(Hclust.Triplet[] dendrogram, Map<Integer, String> labels) {
+        int n = labels.size();
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = labels.get(i);
+        }
 
-            if (sources.size() == 0) {
-                // Could not find source file for, e.g. a generated source file
-                return;
-            } else if (sources.size() > 1) {
-                // More than one source file found with same package/name
-                return;
+        int rows = dendrogram.length;
+        int[] left = new int[rows];
+        int[] right = new int[rows];
+        int[] value = new int[rows];
+        int[] parent = new int[rows];
+        if (rows > 0) {
+            parent[rows - 1] = -1;
+        }
+        for (int k = 0; k < rows; k++) {
+            left[k] = dendrogram[k].a;
+            right[k] = dendrogram[k].b;
+            value[k] = dendrogram[k].distance;
+            // Children are always built in an earlier row
+            if (left[k] >= 0) {
+                parent[left[k]] = k;
             }
-
-            Path source = sources.get(0);
-
-            Path dest = Paths.get(destDirectory + "/" + path.substring(path.lastIndexOf("/")+1));
-            Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING);
-        } else {
-            // Directory
-            String newDirectory;
-            if (sourceTree.value == lastValue) {
-                newDirectory = destDirectory;
-            } else {
-                newDirectory = destDirectory + "/_" + Integer.toString(sourceTree.value);
-                Files.createDirectories(Paths.get(newDirectory));
+            if (right[k] >= 0) {
+                parent[right[k]] = k;
             }
-            writeTree(sourceTree.left, sourceDirectory, newDirectory, sourceTree.value);
-            writeTree(sourceTree.right, sourceDirectory, newDirectory, sourceTree.value);
         }
+
+        return new BinaryTree(names, left, right, value, parent);
     }
 
-    private static BinaryTree treeBuilder(Hclust.Triplet[] dendrogram, Map<Integer, String> labels, int dendIx) {
-        if (dendIx < 0) {
-            // File
-            return new BinaryTree(dendIx, labels.get(dendIx + labels.size()));
-        } else {
-            // Directory
-            BinaryTree result = new BinaryTree(dendrogram[dendIx].distance);
-            BinaryTree left = treeBuilder(dendrogram, labels, dendrogram[dendIx].a);
-            result.setLeft(left);
-            BinaryTree right = treeBuilder(dendrogram, labels, dendrogram[dendIx].b);
-            result.setRight(right);
-            return result;
+    interface Transfer {
+        void apply(Path source, Path dest) throws IOException;
+    }
+
+    static class Layout {
+        final Path root;
+        // Parents always come before their children
+        final List<Path> directories = new ArrayList<>();
+        final List<Path[]> files = new ArrayList<>();
+
+        Layout(Path root) {
+            this.root = root;
+        }
+
+        void createDirectories() throws IOException {
+            for (Path directory : directories) {
+                Files.createDirectories(directory);
+            }
         }
     }
 
     public static class BinaryTree {
-        int value;
-        String name;
-        BinaryTree left;
-        BinaryTree right;
-
-        public BinaryTree(int value, String name) {
+        // Nodes use the dendrogram encoding: leaf i is i - n, row k is k
+        private final String[] names;
+        private final int[] left;
+        private final int[] right;
+        private final int[] value;
+        private final int[] parent;
+
+        BinaryTree(String[] names, int[] left, int[] right, int[] value, int[] parent) {
+            this.names = names;
+            this.left = left;
+            this.right = right;
             this.value = value;
-            this.name = name;
-            this.left = null;
-            this.right = null;
+            this.parent = parent;
         }
 
-        BinaryTree(int value) {
-            this(value, null);
+        public int leaves() {
+            return names.length;
         }
 
-        public void setLeft(BinaryTree left) {
-            this.left = left;
+        public int rows() {
+            return value.length;
         }
 
-        public void setRight(BinaryTree right) {
-            this.right = right;
+        public int root() {
+            // A single class has no merges, so the root is the leaf itself
+            return value.length - 1;
+        }
+
+        public boolean isLeaf(int node) {
+            return node < 0;
+        }
+
+        public String name(int node) {
+            return isLeaf(node) ? names[node + names.length] : null;
+        }
+
+        public int value(int node) {
+            // Merge height for directories, encoded node id for files
+            return isLeaf(node) ? node : value[node];
+        }
+
+        public int left(int node) {
+            return left[node];
+        }
+
+        public int right(int node) {
+            return right[node];
+        }
+
+        public int parent(int node) {
+            return parent[node];
         }
 
         public boolean equals(Object o) {
@@ -218,12 +478,37 @@ public class FileCluster {
             }
 
             BinaryTree t = (BinaryTree) o;
+            if (leaves() != t.leaves() || rows() != t.rows()) {
+                return false;
+            }
 
-            if (name != null) {
-                return value == t.value && name.equals(t.name);
-            } else {
-                return value == t.value && left.equals(t.left) && right.equals(t.right);
+            // Walk both trees side by side with an explicit stack
+            int[] stack = new int[2 * (rows() + 1)];
+            int top = 0;
+            stack[top++] = root();
+            stack[top++] = t.root();
+            while (top > 0) {
+                int b = stack[--top];
+                int a = stack[--top];
+                if (value(a) != t.value(b) || isLeaf(a) != t.isLeaf(b)) {
+                    return false;
+                }
+                if (isLeaf(a)) {
+                    if (!Objects.equals(name(a), t.name(b))) {
+                        return false;
+                    }
+                } else {
+                    stack[top++] = left(a);
+                    stack[top++] = t.left(b);
+                    stack[top++] = right(a);
+                    stack[top++] = t.right(b);
+                }
             }
+            return true;
+        }
+
+        public int hashCode() {
+            return 31 * leaves() + rows();
         }
 
     }
@@ -2,6 +2,7 @@ package io.github.patrickdoc;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -12,7 +13,13 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 // https://arxiv.org/pdf/1109.2378.pdf
 // https://uc-r.github.io/hc_clustering
@@ -26,75 +33,333 @@ public class Hclust {
         this.nodeLabels = nodeLabels;
     }
 
+    // Picks the fastest algorithm for the linkage: a minimum spanning tree
+    // over the dependency rows for single linkage, which never materializes
+    // the distances, the nearest neighbour chain for the other reducible
+    // linkages and the generic algorithm for the rest
+    public static Hclust fromDependencyMatrix(DependencyMatrix dependencyMatrix, ClusterOptions options) {
+        Linkage linkage = options.getLinkage();
+        RunMetrics metrics = options.getMetrics();
+        if (linkage == Linkage.SINGLE) {
+            Adjacency rows;
+            try (RunMetrics.Stage stage = metrics.stage("distanceRows")) {
+                rows = DistanceMatrix.distanceRows(dependencyMatrix.dependencies, options.denseRows);
+            }
+            try (RunMetrics.Stage stage = metrics.stage("clustering")) {
+                return new Hclust(mstCore(rows), labels(dependencyMatrix.nodeIds));
+            }
+        }
+
+        DistanceMatrix distanceMatrix;
+        try (RunMetrics.Stage stage = metrics.stage("distanceMatrix")) {
+            distanceMatrix = DistanceMatrix.fromDependencyMatrix(dependencyMatrix, options.getThreads(), linkage,
+                                                                 options.getMapDirectory(), options.denseRows,
+                                                                 metrics);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (RunMetrics.Stage stage = metrics.stage("clustering")) {
+            return fromDistanceMatrix(distanceMatrix, options);
+        }
+    }
+
+    // Clusters each weakly connected component on its own, spread over a
+    // thread pool, and then joins the component roots with the same linkage.
+    // Distances across components only count at the top, so the result can
+    // differ from clustering the whole graph at once.
+    public static Hclust fromComponents(DependencyMatrix dependencyMatrix, ClusterOptions options)
+            throws InterruptedException, ExecutionException {
+        Components components = Components.of(dependencyMatrix.dependencies);
+        if (components.count() <= 1) {
+            return fromDependencyMatrix(dependencyMatrix, options);
+        }
+
+        int n = dependencyMatrix.nodeIds.size();
+        int count = components.count();
+        Linkage linkage = options.getLinkage();
+        Map<Integer, String> labels = labels(dependencyMatrix.nodeIds);
+        int parallelism = options.parallelism();
+
+        // Most of the graph, clustered on this thread with the threads the
+        // pool for the small components leaves over
+        int largestIx = -1;
+        for (int c = 0; c < count; c++) {
+            if (components.members[c].length > n / 2) {
+                largestIx = c;
+            }
+        }
+        int poolSize = largestIx < 0 ? parallelism : Math.max(1, parallelism / 2);
+
+        List<Future<List<Triplet>>> futures = new ArrayList<>();
+        List<Triplet> largest = null;
+        boolean done = false;
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize, options.getMetrics().threadFactory());
+        try {
+            for (int c = 0; c < count; c++) {
+                int component = c;
+                if (c == largestIx) {
+                    futures.add(null);
+                } else if (components.members[c].length > 1) {
+                    // Each task records into metrics of its own
+                    ClusterOptions single = options.copy().setThreads(1);
+                    futures.add(pool.submit(() -> fromDependencyMatrix(
+                        components.subMatrix(dependencyMatrix, labels, component), single).dendrogram));
+                } else {
+                    futures.add(null);
+                }
+            }
+            if (largestIx >= 0) {
+                largest = fromDependencyMatrix(components.subMatrix(dependencyMatrix, labels, largestIx),
+                                               options.copy().setThreads(Math.max(1, parallelism - poolSize)))
+                    .dendrogram;
+            }
+
+            // Shift every component into the global numbering
+            List<Triplet> result = new ArrayList<>(n - 1);
+            int[] roots = new int[count];
+            int[] sizes = new int[count];
+            for (int c = 0; c < count; c++) {
+                int[] nodes = components.members[c];
+                sizes[c] = nodes.length;
+                List<Triplet> part = c == largestIx ? largest : futures.get(c) == null ? null : futures.get(c).get();
+                if (part == null) {
+                    roots[c] = nodes[0] - n;
+                    continue;
+                }
+                int offset = result.size();
+                for (Triplet t : part) {
+                    result.add(new Triplet(t.a < 0 ? nodes[t.a + nodes.length] - n : t.a + offset,
+                                           t.b < 0 ? nodes[t.b + nodes.length] - n : t.b + offset,
+                                           t.distance));
+                }
+                roots[c] = result.size() - 1;
+            }
+
+            // Join the roots, with each component as one starting cluster
+            CondensedMatrix top = componentDistances(dependencyMatrix.dependencies, components, linkage);
+            List<Triplet> joins = linkage.isReducible()
+                ? nnChainCore(count, top, linkage, sizes)
+                : genericCore(count, top, linkage, sizes);
+            int offset = result.size();
+            for (Triplet t : joins) {
+                result.add(new Triplet(t.a < 0 ? roots[t.a + count] : t.a + offset,
+                                       t.b < 0 ? roots[t.b + count] : t.b + offset,
+                                       t.distance));
+            }
+
+            done = true;
+            return new Hclust(result, labels);
+        } finally {
+            // Don't leave the queued components running after a failure
+            if (done) {
+                pool.shutdown();
+            } else {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // Two nodes in different components are at distance deg(a) + deg(b), and
+    // the centroids of two components have disjoint support, so the linkage
+    // between components follows from per component degree statistics.
+    // Weighted and median depend on the merge order and fall back to average
+    // and centroid.
+    private static CondensedMatrix componentDistances(Adjacency deps, Components components, Linkage linkage) {
+        int count = components.count();
+        double[] minDegree = new double[count];
+        double[] maxDegree = new double[count];
+        double[] meanDegree = new double[count];
+        double[] centroidNorm = new double[count];
+
+        int[] hits = new int[deps.size()];
+        for (int c = 0; c < count; c++) {
+            int[] nodes = components.members[c];
+            minDegree[c] = Double.POSITIVE_INFINITY;
+            for (int node : nodes) {
+                int degree = deps.degree(node);
+                minDegree[c] = Math.min(minDegree[c], degree);
+                maxDegree[c] = Math.max(maxDegree[c], degree);
+                meanDegree[c] += (double) degree / nodes.length;
+                for (int k = 0; k < degree; k++) {
+                    hits[deps.neighbour(node, k)]++;
+                }
+            }
+            for (int node : nodes) {
+                int degree = deps.degree(node);
+                for (int k = 0; k < degree; k++) {
+                    int dest = deps.neighbour(node, k);
+                    double share = (double) hits[dest] / nodes.length;
+                    centroidNorm[c] += share * share;
+                    hits[dest] = 0;
+                }
+            }
+        }
+
+        CondensedMatrix result = CondensedMatrix.allocateFloat(count);
+        for (int a = 0; a < count; a++) {
+            for (int b = a + 1; b < count; b++) {
+                double distance;
+                switch (linkage) {
+                    case SINGLE:
+                        distance = minDegree[a] + minDegree[b];
+                        break;
+                    case COMPLETE:
+                        distance = maxDegree[a] + maxDegree[b];
+                        break;
+                    case AVERAGE:
+                    case WEIGHTED:
+                        distance = meanDegree[a] + meanDegree[b];
+                        break;
+                    case WARD:
+                        double sizeA = components.members[a].length;
+                        double sizeB = components.members[b].length;
+                        distance = 2 * sizeA * sizeB / (sizeA + sizeB) * (centroidNorm[a] + centroidNorm[b]);
+                        break;
+                    default:
+                        distance = centroidNorm[a] + centroidNorm[b];
+                        break;
+                }
+                result.setDouble(a, b, distance);
+            }
+        }
+        return result;
+    }
+
     public static Hclust fromDistanceMatrix(DistanceMatrix distanceMatrix) {
-        int n = distanceMatrix.nodeIds.size();
+        return fromDistanceMatrix(distanceMatrix, new ClusterOptions());
+    }
 
-        Map<Pair, Integer> distances = new HashMap<>();
-        for (int i = 0; i < n; i++) {
-            for (int j = i; j < n; j++) {
-                distances.put(new Pair(i,j), distanceMatrix.distances[i][j]);
+    public static Hclust fromDistanceMatrix(DistanceMatrix distanceMatrix, ClusterOptions options) {
+        int n = distanceMatrix.nodeIds.size();
+        Linkage linkage = options.getLinkage();
+
+        // Clusters in place, the distance matrix is consumed
+        List<Triplet> result;
+        try {
+            if (!linkage.isReducible()) {
+                result = genericCore(n, distanceMatrix.distances, linkage);
+            } else if (options.parallelMerge && options.parallelism() > 1) {
+                result = rnnCore(n, distanceMatrix.distances, linkage, options.parallelism(), options.getMetrics());
+            } else {
+                result = nnChainCore(n, distanceMatrix.distances, linkage);
             }
+        } finally {
+            // Let the matrix go before the caller moves on to the next stage,
+            // a mapped one is unmapped and its file deleted right away
+            distanceMatrix.distances.close();
+            distanceMatrix.distances = null;
         }
 
-        List<Triplet> result = nnChainCore(n, distances);
-        //stableSort(result);
-        // Currently not using this optimization
-        //List<Triplet> labelled = label(result);
-        List<Triplet> labelled = result;
+        return new Hclust(result, labels(distanceMatrix.nodeIds));
+    }
 
+    public static Map<Integer, String> labels(Map<String, Integer> nodeIds) {
         Map<Integer, String> labels = new HashMap<>();
-        for (Map.Entry<String, Integer> e : distanceMatrix.nodeIds.entrySet()) {
+        for (Map.Entry<String, Integer> e : nodeIds.entrySet()) {
             labels.put(e.getValue(), e.getKey());
         }
-
-        return new Hclust(labelled, labels);
+        return labels;
     }
 
     public static void stableSort(List<Triplet> input) {
         input.sort((e1, e2) -> Integer.compare(e1.distance, e2.distance));
     }
 
+    // Canonical form for comparing dendrograms that merged in a different
+    // order: each merge is expressed by the smallest leaf on either side, then
+    // sorted by distance and labelled again
+    public static List<Triplet> normalize(List<Triplet> input) {
+        int n = input.size() + 1;
+        int[] smallest = new int[input.size()];
+        List<Triplet> leaves = new ArrayList<>();
+        for (int row = 0; row < input.size(); row++) {
+            Triplet t = input.get(row);
+            int a = t.a < 0 ? t.a + n : smallest[t.a];
+            int b = t.b < 0 ? t.b + n : smallest[t.b];
+            smallest[row] = Math.min(a, b);
+            leaves.add(new Triplet(Math.min(a, b) - n, Math.max(a, b) - n, t.distance));
+        }
+        stableSort(leaves);
+        return label(leaves);
+    }
+
+    // Turns merges of leaves, in order, into a dendrogram where each merge
+    // refers to the clusters its leaves belong to at that point
     public static List<Triplet> label(List<Triplet> input) {
         List<Triplet> result = new ArrayList<>();
         int n = input.size() + 1;
         UnionFind u = new UnionFind(n);
         for (Triplet t : input) {
-            int normalizedA = t.a + n;
-            int normalizedB = t.b + n;
-            result.add(new Triplet(u.find(normalizedA), u.find(normalizedB), t.distance));
-            u.union(normalizedA, normalizedB);
+            int rootA = u.find(t.a + n);
+            int rootB = u.find(t.b + n);
+            result.add(new Triplet(rootA - n, rootB - n, t.distance));
+            u.union(rootA, rootB);
         }
         return result;
     }
 
-    public static List<Triplet> nnChainCore(int n, Map<Pair, Integer> distances) {
+    // Cluster ids run from 0 to 2n - 2, and every active cluster owns the row
+    // of the condensed matrix in slot[id]. A merged cluster takes over the row
+    // of one of its children, so the matrix never grows.
+    //
+    // The active clusters form a doubly linked list in id order through
+    // next/prev, with 2n - 1 as the sentinel. New clusters always get the
+    // largest id, so appending them at the tail keeps the list sorted.
+    //
+    // Pairs are ordered by distance, then by the smaller and the larger top
+    // of the two clusters, where the top is the largest leaf in a cluster.
+    // A merged cluster's top is at least that of either child, so merging
+    // never moves a pair forward in that order and the dendrogram is the one
+    // that always merges the first pair, whatever order equal distances are
+    // found in. The parallel engine below uses the same order.
+    public static List<Triplet> nnChainCore(int n, CondensedMatrix distances) {
+        return nnChainCore(n, distances, Linkage.COMPLETE);
+    }
+
+    public static List<Triplet> nnChainCore(int n, CondensedMatrix distances, LanceWilliams linkage) {
+        return nnChainCore(n, distances, linkage, null);
+    }
+
+    // sizes gives the number of leaves behind each starting node, or null
+    // when every node is a single leaf
+    public static List<Triplet> nnChainCore(int n, CondensedMatrix distances, LanceWilliams linkage, int[] sizes) {
         List<Triplet> result = new ArrayList<>();
 
-        TreeSet<Integer> S = new TreeSet<>();
-        Map<Integer, Integer> size = new HashMap();
+        int ids = Math.max(1, 2 * n - 1);
+        int head = ids;
+        int[] next = new int[ids + 1];
+        int[] prev = new int[ids + 1];
+        int[] size = new int[ids];
+        int[] slot = new int[ids];
+        int[] top = new int[ids];
+        next[head] = head;
+        prev[head] = head;
+        int active = 0;
         int counter = 0;
         for (counter = 0; counter < n; counter++) {
-            S.add(counter);
-            size.put(counter, 1);
+            append(next, prev, head, counter);
+            active++;
+            size[counter] = sizes == null ? 1 : sizes[counter];
+            slot[counter] = counter;
+            top[counter] = counter;
         }
 
-        Integer[] chain = new Integer[n];
+        int[] chain = new int[n];
         int chainIx = 0;
 
-        int idx1, idx2, c;
-        int min;
-        while (S.size() > 1) {
+        int idx1, idx2;
+        double min;
+        while (active > 1) {
             if (chainIx <= 3) {
-                idx1 = S.first();
+                idx1 = next[head];
                 chain[0] = idx1;
                 chainIx = 1;
 
-                idx2 = S.tailSet(idx1, false).first();
-                min = distances.get(new Pair(idx1, idx2));
-                int tailVal = idx2;
-                for (Integer i : S.tailSet(tailVal, false)) {
-                    int dist = distances.get(new Pair(idx1, i));
-                    if (dist < min) {
+                idx2 = next[idx1];
+                min = distances.getDouble(slot[idx1], slot[idx2]);
+                for (int i = next[idx2]; i != head; i = next[i]) {
+                    double dist = distances.getDouble(slot[idx1], slot[i]);
+                    if (dist < min || dist == min && top[i] < top[idx2]) {
                         min = dist;
                         idx2 = i;
                     }
@@ -103,22 +368,20 @@ public class Hclust {
                 chainIx -= 3;
                 idx1 = chain[chainIx - 1];
                 idx2 = chain[chainIx];
-                min = distances.get(idx1 < idx2 ? new Pair(idx1, idx2) : new Pair(idx2, idx1));
+                min = distances.getDouble(slot[idx1], slot[idx2]);
             }
 
             do {
                 chain[chainIx] = idx2;
-    
-                for (Integer i : S.headSet(idx2, false)) {
-                    int dist = distances.get(new Pair(i, idx2));
-                    if (dist < min) {
-                        min = dist;
-                        idx1 = i;
+
+                int row2 = slot[idx2];
+                for (int i = next[head]; i != head; i = next[i]) {
+                    if (i == idx2) {
+                        continue;
                     }
-                }
-                for (Integer i : S.tailSet(idx2, false)) {
-                    int dist = distances.get(new Pair(idx2, i));
-                    if (dist < min) {
+                    // For a fixed idx2 the pair order is by distance, then top
+                    double dist = distances.getDouble(slot[i], row2);
+                    if (dist < min || dist == min && top[i] < top[idx1]) {
                         min = dist;
                         idx1 = i;
                     }
@@ -128,71 +391,445 @@ public class Hclust {
                 idx1 = chain[chainIx++];
             } while (idx2 != chain[chainIx - 2]);
 
-            Triplet t = new Triplet(idx1 - n, idx2 - n, min);
+            Triplet t = new Triplet(idx1 - n, idx2 - n, (int) Math.round(min));
             result.add(t);
 
-            S.remove((Integer) idx1);
-            S.remove((Integer) idx2);
-
-            size.put(counter, size.get(idx1) + size.get(idx2));
-    
             // idx1 must be < idx2 here
             if (idx1 > idx2) {
                 int tmp = idx1;
                 idx1 = idx2;
                 idx2 = tmp;
             }
-    
-            Integer newVal;
-            for (Integer i : S.headSet(idx1, false)) {
-                newVal = method(distances.get(new Pair(i, idx1)), distances.get(new Pair(i, idx2)));
-                distances.put(new Pair(i, counter), newVal);
+
+            int row1 = slot[idx1];
+            int row2 = slot[idx2];
+            for (int i = next[head]; i != head; i = next[i]) {
+                if (i == idx1 || i == idx2) {
+                    continue;
+                }
+                int row = slot[i];
+                distances.setDouble(row, row1, linkage.update(distances.getDouble(row, row1),
+                                                              distances.getDouble(row, row2),
+                                                              min, size[idx1], size[idx2], size[i]));
             }
-            for (Integer i : S.subSet(idx1, false, idx2, false)) {
-                newVal = method(distances.get(new Pair(idx1, i)), distances.get(new Pair(i, idx2)));
-                distances.put(new Pair(i, counter), newVal);
+            slot[counter] = row1;
+            size[counter] = size[idx1] + size[idx2];
+            top[counter] = Math.max(top[idx1], top[idx2]);
+
+            remove(next, prev, idx1);
+            remove(next, prev, idx2);
+            append(next, prev, head, counter);
+            active--;
+            counter++;
+        }
+
+        return result;
+    }
+
+    private static void append(int[] next, int[] prev, int head, int id) {
+        int tail = prev[head];
+        next[tail] = id;
+        prev[id] = tail;
+        next[id] = head;
+        prev[head] = id;
+    }
+
+    private static void remove(int[] next, int[] prev, int id) {
+        next[prev[id]] = next[id];
+        prev[next[id]] = prev[id];
+    }
+
+    // Parallel reciprocal nearest neighbour clustering for reducible
+    // linkages. Each round finds the nearest neighbour of every cluster in
+    // parallel and merges all pairs that are each other's nearest neighbour,
+    // one pair at a time with the distance updates spread over the pool.
+    // Reducibility means merging never brings a cluster closer to a third
+    // one, so a nearest neighbour stays valid unless it was merged itself and
+    // only those entries are searched again. Pairs are ordered as in
+    // nnChainCore, so both give the same dendrogram for any number of threads.
+    public static List<Triplet> rnnCore(int n, CondensedMatrix distances, LanceWilliams linkage, int threads) {
+        return rnnCore(n, distances, linkage, threads, new RunMetrics());
+    }
+
+    // The pool threads record into metrics
+    public static List<Triplet> rnnCore(int n, CondensedMatrix distances, LanceWilliams linkage, int threads,
+                                        RunMetrics metrics) {
+        List<Triplet> result = new ArrayList<>();
+        if (n < 2) {
+            return result;
+        }
+
+        int[] size = new int[n];
+        int[] id = new int[n];
+        int[] top = new int[n];
+        int[] active = new int[n];
+        int[] dirty = new int[n];
+        int[] pairs = new int[n];
+        int[] nghbr = new int[n];
+        double[] mindist = new double[n];
+        boolean[] merged = new boolean[n];
+        boolean[] removed = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            size[i] = 1;
+            id[i] = i;
+            top[i] = i;
+            active[i] = i;
+            dirty[i] = i;
+        }
+        int activeCount = n;
+        int dirtyCount = n;
+
+        ForkJoinPool pool = new ForkJoinPool(threads, metrics.workerFactory(), null, false);
+        try {
+            while (activeCount > 1) {
+                int searchCount = activeCount;
+                parallelFor(pool, dirtyCount, 16, k -> {
+                    int i = dirty[k];
+                    int best = -1;
+                    double bestDist = Double.POSITIVE_INFINITY;
+                    for (int t = 0; t < searchCount; t++) {
+                        int j = active[t];
+                        if (j == i) {
+                            continue;
+                        }
+                        double dist = distances.getDouble(i, j);
+                        if (dist < bestDist || dist == bestDist && top[j] < top[best]) {
+                            bestDist = dist;
+                            best = j;
+                        }
+                    }
+                    nghbr[i] = best;
+                    mindist[i] = bestDist;
+                });
+
+                int pairCount = 0;
+                for (int t = 0; t < activeCount; t++) {
+                    int i = active[t];
+                    if (i < nghbr[i] && nghbr[nghbr[i]] == i) {
+                        pairs[pairCount++] = i;
+                    }
+                }
+                if (pairCount == 0) {
+                    // Rounding in the distance updates can leave a cached
+                    // neighbour stale, searching all clusters again always
+                    // yields a reciprocal pair
+                    System.arraycopy(active, 0, dirty, 0, activeCount);
+                    dirtyCount = activeCount;
+                    continue;
+                }
+
+                int updateCount = activeCount;
+                for (int p = 0; p < pairCount; p++) {
+                    int idx1 = pairs[p];
+                    int idx2 = nghbr[idx1];
+                    double min = mindist[idx1];
+                    result.add(new Triplet(id[idx1] - n, id[idx2] - n, (int) Math.round(min)));
+
+                    int sizeX = size[idx1];
+                    int sizeY = size[idx2];
+                    parallelFor(pool, updateCount, 4096, t -> {
+                        int i = active[t];
+                        if (i == idx1 || i == idx2 || removed[i]) {
+                            return;
+                        }
+                        distances.setDouble(i, idx1, linkage.update(distances.getDouble(idx1, i),
+                                                                    distances.getDouble(idx2, i),
+                                                                    min, sizeX, sizeY, size[i]));
+                    });
+                    size[idx1] += size[idx2];
+                    top[idx1] = Math.max(top[idx1], top[idx2]);
+                    id[idx1] = n + result.size() - 1;
+                    removed[idx2] = true;
+                    merged[idx1] = true;
+                    merged[idx2] = true;
+                }
+
+                int kept = 0;
+                dirtyCount = 0;
+                for (int t = 0; t < activeCount; t++) {
+                    int i = active[t];
+                    if (removed[i]) {
+                        continue;
+                    }
+                    active[kept++] = i;
+                    if (merged[i] || merged[nghbr[i]]) {
+                        dirty[dirtyCount++] = i;
+                    }
+                }
+                for (int p = 0; p < pairCount; p++) {
+                    merged[pairs[p]] = false;
+                    merged[nghbr[pairs[p]]] = false;
+                }
+                activeCount = kept;
             }
-            for (Integer i : S.tailSet(idx2, false)) {
-                newVal = method(distances.get(new Pair(idx1, i)), distances.get(new Pair(idx2, i)));
-                distances.put(new Pair(i, counter), newVal);
+        } finally {
+            pool.shutdown();
+        }
+
+        return result;
+    }
+
+    private static void parallelFor(ForkJoinPool pool, int count, int grain, IntConsumer body) {
+        if (count <= grain) {
+            for (int k = 0; k < count; k++) {
+                body.accept(k);
             }
+        } else {
+            pool.invoke(new RangeTask(body, 0, count, grain));
+        }
+    }
 
-            S.add(counter);
-            counter++;
+    private static class RangeTask extends RecursiveAction {
+        final IntConsumer body;
+        final int start;
+        final int end;
+        final int grain;
+
+        RangeTask(IntConsumer body, int start, int end, int grain) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
         }
 
-        return result;
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                for (int k = start; k < end; k++) {
+                    body.accept(k);
+                }
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RangeTask(body, start, mid, grain), new RangeTask(body, mid, end, grain));
+            }
+        }
     }
 
-    public static int method(Integer a, Integer b) {
-        return a > b ? a : b;
+    // Prim's algorithm over the dependency rows, keeping only the distance
+    // from each node outside the tree to the tree. The merges come out of
+    // order, so they are sorted by distance and labelled at the end.
+    public static List<Triplet> mstCore(Adjacency rows) {
+        int n = rows.size();
+        List<Triplet> result = new ArrayList<>();
+        if (n < 2) {
+            return result;
+        }
+
+        int head = n;
+        int[] next = new int[n + 1];
+        int[] prev = new int[n + 1];
+        next[head] = head;
+        prev[head] = head;
+        int[] nearest = new int[n];
+        for (int i = 1; i < n; i++) {
+            append(next, prev, head, i);
+            nearest[i] = Integer.MAX_VALUE;
+        }
+
+        int prevNode = 0;
+        for (int step = 0; step < n - 1; step++) {
+            int idx2 = next[head];
+            int min = Integer.MAX_VALUE;
+            for (int i = next[head]; i != head; i = next[i]) {
+                int dist = rows.hamming(prevNode, i);
+                if (dist < nearest[i]) {
+                    nearest[i] = dist;
+                }
+                if (nearest[i] < min) {
+                    min = nearest[i];
+                    idx2 = i;
+                }
+            }
+
+            result.add(new Triplet(prevNode - n, idx2 - n, min));
+            remove(next, prev, idx2);
+            prevNode = idx2;
+        }
+
+        stableSort(result);
+        return label(result);
     }
 
-    public static class Pair {
-        int a;
-        int b;
+    // Generic algorithm from the paper above for linkages where merging can
+    // bring clusters closer together. Every slot keeps a lower bound on the
+    // distance to its nearest neighbour among the later slots, and a heap
+    // over those bounds finds the closest pair, checking stale entries only
+    // when they reach the top. A merged cluster lives in the later slot.
+    // Equal distances are ordered by the tops of the pair as in nnChainCore.
+    public static List<Triplet> genericCore(int n, CondensedMatrix distances, LanceWilliams linkage) {
+        return genericCore(n, distances, linkage, null);
+    }
 
-        public Pair(int a, int b) {
-            this.a = a;
-            this.b = b;
+    public static List<Triplet> genericCore(int n, CondensedMatrix distances, LanceWilliams linkage, int[] sizes) {
+        List<Triplet> result = new ArrayList<>();
+        if (n < 2) {
+            return result;
         }
 
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+        int head = n;
+        int[] next = new int[n + 1];
+        int[] prev = new int[n + 1];
+        next[head] = head;
+        prev[head] = head;
+        int[] size = new int[n];
+        int[] id = new int[n];
+        int[] top = new int[n];
+        for (int i = 0; i < n; i++) {
+            append(next, prev, head, i);
+            size[i] = sizes == null ? 1 : sizes[i];
+            id[i] = i;
+            top[i] = i;
+        }
+
+        int[] nghbr = new int[n];
+        double[] mindist = new double[n];
+        long[] tie = new long[n];
+        for (int i = 0; i < n; i++) {
+            findNeighbour(distances, next, head, top, nghbr, mindist, tie, i);
+        }
+        IndexedHeap heap = new IndexedHeap(mindist, tie);
+
+        for (int step = 0; step < n - 1; step++) {
+            int idx1 = heap.top();
+            while (distances.getDouble(idx1, nghbr[idx1]) != mindist[idx1]
+                   || tie[idx1] != pairTops(top[idx1], top[nghbr[idx1]])) {
+                findNeighbour(distances, next, head, top, nghbr, mindist, tie, idx1);
+                heap.update(idx1);
+                idx1 = heap.top();
             }
+            int idx2 = nghbr[idx1];
+            double min = mindist[idx1];
 
-            if (o == null || getClass() != o.getClass()) {
-                return false;
+            result.add(new Triplet(id[idx1] - n, id[idx2] - n, (int) Math.round(min)));
+
+            for (int i = next[head]; i != head; i = next[i]) {
+                if (i == idx1 || i == idx2) {
+                    continue;
+                }
+                distances.setDouble(i, idx2, linkage.update(distances.getDouble(idx1, i),
+                                                             distances.getDouble(idx2, i),
+                                                             min, size[idx1], size[idx2], size[i]));
             }
+            size[idx2] += size[idx1];
+            top[idx2] = Math.max(top[idx1], top[idx2]);
+            id[idx2] = n + step;
+
+            remove(next, prev, idx1);
+            mindist[idx1] = Double.POSITIVE_INFINITY;
+            heap.update(idx1);
+
+            // Only distances to idx2 and its top changed, so earlier slots
+            // either point to it now or keep a valid lower bound
+            for (int i = next[head]; i != idx2; i = next[i]) {
+                if (nghbr[i] == idx1) {
+                    nghbr[i] = idx2;
+                }
+                double dist = distances.getDouble(i, idx2);
+                long tops = pairTops(top[i], top[idx2]);
+                if (dist < mindist[i] || dist == mindist[i] && tops < tie[i]) {
+                    mindist[i] = dist;
+                    tie[i] = tops;
+                    nghbr[i] = idx2;
+                    heap.update(i);
+                }
+            }
+            findNeighbour(distances, next, head, top, nghbr, mindist, tie, idx2);
+            heap.update(idx2);
+        }
 
-            Pair p = (Pair) o;
+        return result;
+    }
 
-            return a == p.a && b == p.b;
+    private static void findNeighbour(CondensedMatrix distances, int[] next, int head, int[] top,
+                                      int[] nghbr, double[] mindist, long[] tie, int i) {
+        nghbr[i] = i;
+        mindist[i] = Double.POSITIVE_INFINITY;
+        for (int j = next[i]; j != head; j = next[j]) {
+            double dist = distances.getDouble(i, j);
+            if (dist < mindist[i] || dist == mindist[i] && top[j] < top[nghbr[i]]) {
+                mindist[i] = dist;
+                nghbr[i] = j;
+            }
         }
+        tie[i] = pairTops(top[i], top[nghbr[i]]);
+    }
 
-        public int hashCode() {
-            return 31 * a + b;
+    // The smaller and the larger top of a pair, in the order they compare
+    private static long pairTops(int a, int b) {
+        return (long) Math.min(a, b) << 32 | Math.max(a, b);
+    }
+
+    // Binary min heap over the indices of a key array, ties broken by a
+    // second key and then by index
+    static class IndexedHeap {
+        final double[] key;
+        final long[] tie;
+        final int[] heap;
+        final int[] pos;
+
+        IndexedHeap(double[] key, long[] tie) {
+            this.key = key;
+            this.tie = tie;
+            this.heap = new int[key.length];
+            this.pos = new int[key.length];
+            for (int i = 0; i < key.length; i++) {
+                heap[i] = i;
+                pos[i] = i;
+            }
+            for (int i = key.length / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        int top() {
+            return heap[0];
+        }
+
+        // Restores the heap after key[i] changed in either direction
+        void update(int i) {
+            siftDown(siftUp(pos[i]));
+        }
+
+        private boolean less(int a, int b) {
+            if (key[a] != key[b]) {
+                return key[a] < key[b];
+            }
+            return tie[a] < tie[b] || (tie[a] == tie[b] && a < b);
+        }
+
+        private int siftUp(int p) {
+            int i = heap[p];
+            while (p > 0) {
+                int parent = (p - 1) >>> 1;
+                if (!less(i, heap[parent])) {
+                    break;
+                }
+                heap[p] = heap[parent];
+                pos[heap[p]] = p;
+                p = parent;
+            }
+            heap[p] = i;
+            pos[i] = p;
+            return p;
+        }
+
+        private void siftDown(int p) {
+            int i = heap[p];
+            int half = heap.length >>> 1;
+            while (p < half) {
+                int child = 2 * p + 1;
+                if (child + 1 < heap.length && less(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!less(heap[child], i)) {
+                    break;
+                }
+                heap[p] = heap[child];
+                pos[heap[p]] = p;
+                p = child;
+            }
+            heap[p] = i;
+            pos[i] = p;
         }
     }
 
@@ -235,7 +872,7 @@ public class Hclust {
             for (int i = 0; i < 2*n - 2; i++) {
                 parent[i] = null;
             }
-            nextLabel = n + 1;
+            nextLabel = n;
         }
 
         public void union(int m, int n) {
@@ -0,0 +1,8 @@
+package io.github.patrickdoc;
+
+// Distance from cluster i to the union of clusters x and y, given the
+// distances before the merge and the cluster sizes
+public interface LanceWilliams {
+
+    double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI);
+}
@@ -0,0 +1,83 @@
+package io.github.patrickdoc;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// Lance-Williams forms of the standard linkages. Hamming distances between
+// dependency rows are squared euclidean distances, so ward, centroid and
+// median apply to them directly.
+public enum Linkage implements LanceWilliams {
+
+    SINGLE(true, true) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return Math.min(dxi, dyi);
+        }
+    },
+    COMPLETE(true, true) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return Math.max(dxi, dyi);
+        }
+    },
+    AVERAGE(true, false) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return (sizeX * dxi + sizeY * dyi) / (sizeX + sizeY);
+        }
+    },
+    WEIGHTED(true, false) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return (dxi + dyi) / 2;
+        }
+    },
+    WARD(true, false) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return ((sizeX + sizeI) * dxi + (sizeY + sizeI) * dyi - sizeI * dxy) / (sizeX + sizeY + sizeI);
+        }
+    },
+    CENTROID(false, false) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            double sizeXY = sizeX + sizeY;
+            return (sizeX * dxi + sizeY * dyi) / sizeXY - sizeX * sizeY * dxy / (sizeXY * sizeXY);
+        }
+    },
+    MEDIAN(false, false) {
+        @Override
+        public double update(double dxi, double dyi, double dxy, int sizeX, int sizeY, int sizeI) {
+            return (dxi + dyi) / 2 - dxy / 4;
+        }
+    };
+
+    private final boolean reducible;
+    private final boolean preservesValues;
+
+    Linkage(boolean reducible, boolean preservesValues) {
+        this.reducible = reducible;
+        this.preservesValues = preservesValues;
+    }
+
+    // Merging two clusters never brings them closer to a third one, which is
+    // what the nearest neighbour chain relies on
+    public boolean isReducible() {
+        return reducible;
+    }
+
+    // Updated distances are always one of the original distances, so the
+    // integer distance matrix can hold them
+    public boolean preservesValues() {
+        return preservesValues;
+    }
+
+    public static Linkage fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown linkage '" + name + "', expected one of "
+                                               + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+}
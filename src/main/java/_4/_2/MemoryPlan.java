@@ -0,0 +1,148 @@
+package io.github.patrickdoc;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Estimated heap footprint of each way to cluster a scanned graph, and the
+// first one that fits a budget. Exact clustering is preferred over splitting
+// by component since splitting changes the result, and heap distances over
+// mapped ones since they are faster. Estimates cover the big arrays only.
+public class MemoryPlan {
+
+    // Names, id maps, labels, cluster arrays and the tree, per node
+    static final long NODE_BYTES = 256;
+
+    public final boolean split;
+    public final boolean mapped;
+    public final boolean denseRows;
+    // Heap bytes, and bytes in the mapped file
+    public final long heapBytes;
+    public final long fileBytes;
+
+    private MemoryPlan(boolean split, boolean mapped, boolean denseRows, long heapBytes, long fileBytes) {
+        this.split = split;
+        this.mapped = mapped;
+        this.denseRows = denseRows;
+        this.heapBytes = heapBytes;
+        this.fileBytes = fileBytes;
+    }
+
+    // The first plan that fits, or null. Mapped plans also need their file
+    // to fit in diskBytes.
+    public static MemoryPlan choose(List<MemoryPlan> candidates, long budget, long diskBytes) {
+        for (MemoryPlan plan : candidates) {
+            if (plan.heapBytes <= budget && plan.fileBytes <= diskBytes) {
+                return plan;
+            }
+        }
+        return null;
+    }
+
+    // In order of preference. Splitting and mapping can be forced on, and
+    // splitting is only considered when allowed since it changes the result.
+    public static List<MemoryPlan> candidates(DependencyMatrix deps, ClusterOptions options,
+                                              boolean forceSplit, boolean allowSplit, boolean forceMapped) {
+        int n = deps.nodeIds.size();
+        Linkage linkage = options.getLinkage();
+        long base = NODE_BYTES * n + 4L * (n + 1) + 4L * deps.dependencies.edgeCount();
+
+        // Components cluster one per thread, so the largest few are in memory at once
+        int[] matrixNodes = new int[] {n};
+        Components components = forceSplit || allowSplit ? Components.of(deps.dependencies) : null;
+        if (components != null && components.count() > 1) {
+            int[] sizes = new int[components.count()];
+            for (int c = 0; c < sizes.length; c++) {
+                sizes[c] = components.members[c].length;
+            }
+            Arrays.sort(sizes);
+            int concurrent = Math.min(sizes.length, options.parallelism() + 1);
+            matrixNodes = Arrays.copyOfRange(sizes, sizes.length - concurrent, sizes.length);
+        }
+
+        List<MemoryPlan> candidates = new ArrayList<>();
+        // A single component clusters the same either way, and single linkage
+        // never builds a distance matrix to map
+        boolean[] splits = forceSplit ? new boolean[] {true}
+            : allowSplit && components.count() > 1 ? new boolean[] {false, true} : new boolean[] {false};
+        boolean[] mappings = linkage == Linkage.SINGLE ? new boolean[] {false}
+            : forceMapped ? new boolean[] {true} : new boolean[] {false, true};
+        for (boolean split : splits) {
+            int[] nodes = split ? matrixNodes : new int[] {n};
+            long matrix = 0;
+            long rows = 0;
+            for (int m : nodes) {
+                if (linkage != Linkage.SINGLE) {
+                    matrix += CondensedMatrix.cells(m) * cellBytes(m, linkage);
+                }
+                rows = Math.max(rows, BitAdjacency.sizeInBytes(m) + 4L * m);
+            }
+            for (boolean mapped : mappings) {
+                long heap = base + (mapped ? 0 : matrix);
+                long file = mapped ? matrix : 0;
+                // Packed rows are only worth it on dense graphs, see DistanceMatrix.distanceRows
+                boolean dense = rows <= DistanceMatrix.MAX_BIT_ROWS_BYTES
+                    && (long) BitAdjacency.wordsPerRow(n) * n <= 8L * deps.dependencies.edgeCount();
+                if (dense) {
+                    candidates.add(new MemoryPlan(split, mapped, true, heap + rows, file));
+                }
+                candidates.add(new MemoryPlan(split, mapped, false, heap, file));
+            }
+        }
+        return candidates;
+    }
+
+    private static int cellBytes(int n, Linkage linkage) {
+        if (!linkage.preservesValues() || n > 0xFFFF) {
+            return 4;
+        }
+        return n > 0xFF ? 2 : 1;
+    }
+
+    public ClusterOptions apply(ClusterOptions options, Path mapDirectory) {
+        return options
+            .setMapDirectory(mapped ? mapDirectory : null)
+            .setDenseRows(denseRows);
+    }
+
+    public String describe() {
+        return (split ? "component-split" : "exact") + " clustering, "
+            + (mapped ? "mapped" : "on-heap") + " distances, "
+            + (denseRows ? "dense" : "sparse") + " dependency rows, "
+            + megabytes(heapBytes) + " heap"
+            + (mapped ? " and " + megabytes(fileBytes) + " mapped" : "");
+    }
+
+    public static String megabytes(long bytes) {
+        return ((bytes + (1 << 20) - 1) >> 20) + " MB";
+    }
+
+    // Sizes like 512m, 2g or a plain number of bytes
+    public static long parseBytes(String size) {
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (value.endsWith("b")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        if (value.endsWith("k")) {
+            unit = 1L << 10;
+        } else if (value.endsWith("m")) {
+            unit = 1L << 20;
+        } else if (value.endsWith("g")) {
+            unit = 1L << 30;
+        } else if (value.endsWith("t")) {
+            unit = 1L << 40;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(value.trim()), unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid size '" + size + "', expected e.g. 512m or 2g");
+        }
+    }
+}
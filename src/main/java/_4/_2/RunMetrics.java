@@ -0,0 +1,309 @@
+package io.github.patrickdoc;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+
+// Wall time and memory of each stage of a run, plus the sizes it worked on.
+// Allocations are summed over the run's own threads while the stage ran:
+// those that opened a stage and the pool threads made by its workerFactory
+// or threadFactory, including ones that ended in the meantime. Peak heap is
+// the sum of the heap pools' peaks while the stage ran, which the JVM only
+// tracks as a whole, so it includes other runs in the same JVM such as
+// modules built in parallel. Totals cover the whole run, including the peak
+// resident set of the process where the OS reports it.
+public class RunMetrics {
+
+    // Stages open in any run. The heap pools only keep one peak for the
+    // whole JVM, so it is folded into every open stage before each reset.
+    private static final List<Stage> OPEN = new ArrayList<>();
+
+    // Live threads of this run, and the last allocation count and end time
+    // of its pool threads that have ended, until its last stage closes
+    private final Set<Long> threads = ConcurrentHashMap.newKeySet();
+    private final Map<Long, long[]> retired = new ConcurrentHashMap<>();
+    private int openStages;
+
+    private final long start = System.nanoTime();
+    private final List<StageMetrics> stages = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    private final Map<String, Long> totals = new LinkedHashMap<>();
+
+    public Stage stage(String name) {
+        return new Stage(name);
+    }
+
+    public void count(String name, long value) {
+        counts.put(name, value);
+    }
+
+    public void finish() {
+        totals.put("millis", (System.nanoTime() - start) / 1000000);
+        totals.put("peakRssBytes", peakRss());
+    }
+
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (StageMetrics stage : stages()) {
+            lines.add(String.format("%-16s %8d ms %12s allocated %12s peak JVM heap",
+                                    stage.name, stage.millis, bytes(stage.allocatedBytes), bytes(stage.peakHeapBytes)));
+        }
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            lines.add(String.format("%-16s %8d", count.getKey(), count.getValue()));
+        }
+        if (!totals.isEmpty()) {
+            lines.add(String.format("%-16s %8d ms %12s peak RSS",
+                                    "total", totals.get("millis"), bytes(totals.get("peakRssBytes"))));
+        }
+        return lines;
+    }
+
+    public String toJson() {
+        List<StageMetrics> stages = stages();
+        StringBuilder json = new StringBuilder("{\n  \"peakHeapScope\": \"jvm\",\n  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics stage = stages.get(i);
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("    {\"name\": \"").append(stage.name)
+                .append("\", \"millis\": ").append(stage.millis)
+                .append(", \"allocatedBytes\": ").append(stage.allocatedBytes)
+                .append(", \"peakHeapBytes\": ").append(stage.peakHeapBytes)
+                .append("}");
+        }
+        json.append(stages.isEmpty() ? "]" : "\n  ]");
+        appendJson(json, "counts", counts);
+        appendJson(json, "totals", totals);
+        return json.append("\n}\n").toString();
+    }
+
+    private List<StageMetrics> stages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages);
+        }
+    }
+
+    private static void appendJson(StringBuilder json, String name, Map<String, Long> values) {
+        json.append(",\n  \"").append(name).append("\": {");
+        int i = 0;
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            json.append(i++ == 0 ? "\n" : ",\n")
+                .append("    \"").append(value.getKey()).append("\": ").append(value.getValue());
+        }
+        json.append(values.isEmpty() ? "}" : "\n  }");
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 0) {
+            return "n/a";
+        }
+        return bytes < 1 << 20 ? (bytes >> 10) + " KB" : (bytes >> 20) + " MB";
+    }
+
+    private static long peakRss() {
+        // Linux only, the high water mark of the resident set in kB
+        Path status = Paths.get("/proc/self/status");
+        if (Files.isReadable(status)) {
+            try {
+                for (String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not available
+            }
+        }
+        return -1;
+    }
+
+    private void enlist() {
+        threads.add(Thread.currentThread().getId());
+    }
+
+    // Records the allocations of a pool thread that is about to end
+    private void retire() {
+        long id = Thread.currentThread().getId();
+        Map<Long, Long> allocated = allocatedBytes(new long[] {id});
+        if (allocated != null && allocated.containsKey(id)) {
+            retired.put(id, new long[] {allocated.get(id), System.nanoTime()});
+        }
+        threads.remove(id);
+    }
+
+    public ForkJoinPool.ForkJoinWorkerThreadFactory workerFactory() {
+        return pool -> new ForkJoinWorkerThread(pool) {
+            @Override
+            protected void onStart() {
+                super.onStart();
+                enlist();
+            }
+
+            @Override
+            protected void onTermination(Throwable exception) {
+                retire();
+                super.onTermination(exception);
+            }
+        };
+    }
+
+    public ThreadFactory threadFactory() {
+        ThreadFactory factory = Executors.defaultThreadFactory();
+        return r -> factory.newThread(() -> {
+            enlist();
+            try {
+                r.run();
+            } finally {
+                retire();
+            }
+        });
+    }
+
+    // Bytes allocated so far by each of the threads, or null if not supported
+    private static Map<Long, Long> allocatedBytes(long[] ids) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()) {
+                long[] bytes = allocations.getThreadAllocatedBytes(ids);
+                Map<Long, Long> result = new HashMap<>();
+                for (int i = 0; i < ids.length; i++) {
+                    // -1 for threads that ended in between
+                    if (bytes[i] >= 0) {
+                        result.put(ids[i], bytes[i]);
+                    }
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private Map<Long, Long> allocatedBytes() {
+        return allocatedBytes(threads.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    // Allocated by the run's threads since the snapshot taken at start
+    private long allocatedSince(Map<Long, Long> start, long startNanos) {
+        Map<Long, Long> now = allocatedBytes();
+        if (start == null || now == null) {
+            return -1;
+        }
+        long total = 0;
+        for (Map.Entry<Long, Long> e : now.entrySet()) {
+            total += e.getValue() - start.getOrDefault(e.getKey(), 0L);
+        }
+        for (Map.Entry<Long, long[]> e : retired.entrySet()) {
+            if (now.containsKey(e.getKey())) {
+                continue;
+            }
+            Long atStart = start.get(e.getKey());
+            if (atStart != null) {
+                total += e.getValue()[0] - atStart;
+            } else if (e.getValue()[1] >= startNanos) {
+                total += e.getValue()[0];
+            }
+        }
+        return total;
+    }
+
+    // Caller holds OPEN
+    private static void foldPeakHeap() {
+        long peak = peakHeap();
+        for (Stage stage : OPEN) {
+            stage.peakHeap = Math.max(stage.peakHeap, peak);
+        }
+        resetPeakHeap();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public class Stage implements AutoCloseable {
+        private final String name;
+        private final long start;
+        private final Map<Long, Long> allocatedAtStart;
+        private long peakHeap;
+
+        private Stage(String name) {
+            this.name = name;
+            enlist();
+            synchronized (OPEN) {
+                foldPeakHeap();
+                OPEN.add(this);
+                openStages++;
+            }
+            this.allocatedAtStart = allocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            long millis = (System.nanoTime() - start) / 1000000;
+            long allocated = allocatedSince(allocatedAtStart, start);
+            synchronized (OPEN) {
+                foldPeakHeap();
+                OPEN.remove(this);
+                // No stage of the run needs the threads that ended anymore
+                if (--openStages == 0) {
+                    retired.clear();
+                }
+            }
+            stages.add(new StageMetrics(name, millis, allocated, peakHeap));
+        }
+    }
+
+    private static class StageMetrics {
+        final String name;
+        final long millis;
+        final long allocatedBytes;
+        final long peakHeapBytes;
+
+        StageMetrics(String name, long millis, long allocatedBytes, long peakHeapBytes) {
+            this.name = name;
+            this.millis = millis;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.github.patrickdoc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Source files under a root, found in one walk and looked up by fully
+// qualified class name
+public class SourceIndex {
+
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;");
+
+    private final Map<String, Path> byPackagePath = new HashMap<>();
+    private final Map<String, List<Path>> byFileName = new HashMap<>();
+
+    private SourceIndex() {
+    }
+
+    public static SourceIndex build(Path root) throws IOException {
+        SourceIndex result = new SourceIndex();
+        if (!Files.isDirectory(root)) {
+            return result;
+        }
+
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(path -> path.getFileName().toString().endsWith(".java"))
+                .forEach(path -> {
+                    String relative = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), ".");
+                    result.byPackagePath.put(relative.substring(0, relative.length() - ".java".length()), path);
+                    result.byFileName.computeIfAbsent(path.getFileName().toString(), x -> new ArrayList<>()).add(path);
+                });
+        }
+        return result;
+    }
+
+    public int size() {
+        return byPackagePath.size();
+    }
+
+    // The source file declaring the class, or null if there is none or it is
+    // ambiguous. Files are usually where their package says, otherwise only
+    // the files with its name are opened to compare their package
+    // declarations, even when there is just one.
+    public Path find(String className) throws IOException {
+        Path direct = byPackagePath.get(className);
+        if (direct != null) {
+            return direct;
+        }
+
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        List<Path> candidates = byFileName.get(simpleName + ".java");
+        if (candidates == null) {
+            // Could not find source file for, e.g. a generated source file
+            return null;
+        }
+
+        String packageName = className.lastIndexOf('.') < 0 ? "" : className.substring(0, className.lastIndexOf('.'));
+        Path match = null;
+        for (Path candidate : candidates) {
+            if (packageName.equals(packageOf(candidate))) {
+                if (match != null) {
+                    // More than one source file found with same package/name
+                    return null;
+                }
+                match = candidate;
+            }
+        }
+        return match;
+    }
+
+    private static String packageOf(Path source) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(source)) {
+            String line = reader.readLine();
+            while (line != null) {
+                Matcher m = PACKAGE.matcher(line);
+                if (m.find()) {
+                    return m.group(1);
+                }
+                if (line.matches("^\\s*(import|public|final|abstract|class|interface|enum)\\b.*")) {
+                    break;
+                }
+                line = reader.readLine();
+            }
+        }
+        return "";
+    }
+}
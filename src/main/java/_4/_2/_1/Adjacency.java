@@ -0,0 +1,20 @@
+package io.github.patrickdoc;
+
+// Read-only view of a directed dependency graph over nodes 0..size()-1
+public interface Adjacency {
+
+    int size();
+
+    int edgeCount();
+
+    // Number of nodes the given node depends on
+    int degree(int node);
+
+    // The k-th dependency of the given node, in ascending node order
+    int neighbour(int node, int k);
+
+    boolean hasEdge(int src, int dest);
+
+    // Number of nodes exactly one of the two nodes depends on
+    int hamming(int node1, int node2);
+}
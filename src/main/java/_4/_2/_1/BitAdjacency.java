@@ -0,0 +1,94 @@
+package io.github.patrickdoc;
+
+// Dense adjacency with each dependency row packed into words of 64 bits,
+// so the distance between two rows is a popcount over their XOR
+public class BitAdjacency implements Adjacency {
+
+    final int n;
+    final int words;
+    final long[] bits;
+    final int[] degrees;
+    final int edgeCount;
+
+    private BitAdjacency(int n, long[] bits, int[] degrees, int edgeCount) {
+        this.n = n;
+        this.words = wordsPerRow(n);
+        this.bits = bits;
+        this.degrees = degrees;
+        this.edgeCount = edgeCount;
+    }
+
+    public static int wordsPerRow(int n) {
+        return (n + 63) >>> 6;
+    }
+
+    // Bytes needed to hold all rows of an n node graph
+    public static long sizeInBytes(int n) {
+        return 8L * n * wordsPerRow(n);
+    }
+
+    public static BitAdjacency fromAdjacency(Adjacency deps) {
+        int n = deps.size();
+        int words = wordsPerRow(n);
+        long[] bits = new long[Math.multiplyExact(n, words)];
+        int[] degrees = new int[n];
+        for (int node = 0; node < n; node++) {
+            int degree = deps.degree(node);
+            int row = node * words;
+            for (int k = 0; k < degree; k++) {
+                int dest = deps.neighbour(node, k);
+                bits[row + (dest >>> 6)] |= 1L << dest;
+            }
+            degrees[node] = degree;
+        }
+        return new BitAdjacency(n, bits, degrees, deps.edgeCount());
+    }
+
+    @Override
+    public int size() {
+        return n;
+    }
+
+    @Override
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    @Override
+    public int degree(int node) {
+        return degrees[node];
+    }
+
+    @Override
+    public int neighbour(int node, int k) {
+        int row = node * words;
+        for (int w = 0; w < words; w++) {
+            long word = bits[row + w];
+            int count = Long.bitCount(word);
+            if (k < count) {
+                for (; k > 0; k--) {
+                    word &= word - 1;
+                }
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            k -= count;
+        }
+        throw new IndexOutOfBoundsException("Node " + node + " has only " + degrees[node] + " dependencies");
+    }
+
+    @Override
+    public boolean hasEdge(int src, int dest) {
+        return (bits[src * words + (dest >>> 6)] & (1L << dest)) != 0;
+    }
+
+    @Override
+    public int hamming(int node1, int node2) {
+        int row1 = node1 * words;
+        int row2 = node2 * words;
+        int distance = 0;
+        for (int w = 0; w < words; w++) {
+            distance += Long.bitCount(bits[row1 + w] ^ bits[row2 + w]);
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.patrickdoc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+// Reads the name of a class and every class it refers to straight from the
+// constant pool, without loading it or building a full class model
+public class ClassFileReader {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    public final String name;
+    public final Set<String> references;
+
+    private ClassFileReader(String name, Set<String> references) {
+        this.name = name;
+        this.references = references;
+    }
+
+    public static ClassFileReader read(Path classFile) throws IOException {
+        try (InputStream in = Files.newInputStream(classFile)) {
+            return read(in, classFile.toString());
+        }
+    }
+
+    // Reads one class file from a stream, e.g. a jar entry, without closing it
+    public static ClassFileReader read(InputStream stream, String classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file: " + classFile);
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classIndex = new int[count];
+        boolean[] literal = new boolean[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:
+                    classIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8:
+                    literal[in.readUnsignedShort()] = true;
+                    break;
+                case 16: case 19: case 20:
+                    in.skipBytes(2);
+                    break;
+                case 15:
+                    in.skipBytes(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    in.skipBytes(4);
+                    break;
+                case 5: case 6:
+                    // Longs and doubles take two slots
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " in " + classFile);
+            }
+        }
+
+        in.readUnsignedShort();
+        String name = utf8[classIndex[in.readUnsignedShort()]].replace('/', '.');
+
+        Set<String> references = new TreeSet<>();
+        for (int i = 1; i < count; i++) {
+            if (classIndex[i] != 0) {
+                addClassName(utf8[classIndex[i]], references);
+            } else if (utf8[i] != null && !literal[i]) {
+                // Descriptors and generic signatures, member names can't contain ';'
+                addSignatureTypes(utf8[i], references);
+            }
+        }
+        references.remove(name);
+
+        return new ClassFileReader(name, references);
+    }
+
+    private static void addClassName(String internalName, Set<String> references) {
+        if (internalName.startsWith("[")) {
+            // Array class, e.g. [[Lfoo/Bar;
+            addSignatureTypes(internalName, references);
+        } else {
+            references.add(internalName.replace('/', '.'));
+        }
+    }
+
+    private static void addSignatureTypes(String signature, Set<String> references) {
+        int i = signature.indexOf('L');
+        while (i >= 0) {
+            int end = i + 1;
+            while (end < signature.length() && signature.charAt(end) != ';' && signature.charAt(end) != '<') {
+                end++;
+            }
+            if (end == signature.length()) {
+                // Not a type, e.g. a class name that happens to contain 'L'
+                return;
+            }
+            if (end > i + 1) {
+                references.add(signature.substring(i + 1, end).replace('/', '.'));
+            }
+            i = signature.indexOf('L', end);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.patrickdoc;
+
+import java.util.Map;
+
+// Weakly connected components of the dependency graph. Nodes in different
+// components share no dependencies, so the distance between them is just
+// the sum of their degrees.
+public class Components {
+
+    // members[c] lists the nodes of component c in ascending order
+    public final int[][] members;
+    public final int[] component;
+    // Index of each node within the members of its component
+    public final int[] position;
+
+    private Components(int[][] members, int[] component, int[] position) {
+        this.members = members;
+        this.component = component;
+        this.position = position;
+    }
+
+    public static Components of(Adjacency deps) {
+        int n = deps.size();
+
+        // Union-find over the edges with path halving
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        for (int src = 0; src < n; src++) {
+            int degree = deps.degree(src);
+            for (int k = 0; k < degree; k++) {
+                int rootA = find(parent, src);
+                int rootB = find(parent, deps.neighbour(src, k));
+                if (rootA != rootB) {
+                    // Keep the smaller node as root so numbering is stable
+                    parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+                }
+            }
+        }
+
+        // Number components in order of their first node
+        int[] component = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            component[i] = root == i ? count++ : component[root];
+        }
+
+        int[] sizes = new int[count];
+        for (int i = 0; i < n; i++) {
+            sizes[component[i]]++;
+        }
+        int[][] members = new int[count][];
+        for (int c = 0; c < count; c++) {
+            members[c] = new int[sizes[c]];
+            sizes[c] = 0;
+        }
+        int[] position = new int[n];
+        for (int i = 0; i < n; i++) {
+            int c = component[i];
+            position[i] = sizes[c];
+            members[c][sizes[c]++] = i;
+        }
+
+        return new Components(members, component, position);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    public int count() {
+        return members.length;
+    }
+
+    // The dependency matrix of one component, with its nodes renumbered in
+    // the order of members[c]
+    public DependencyMatrix subMatrix(DependencyMatrix deps, Map<Integer, String> labels, int c) {
+        int[] nodes = members[c];
+        DependencyMatrix result = new DependencyMatrix();
+        for (int l = 0; l < nodes.length; l++) {
+            result.nodeIds.put(labels.get(nodes[l]), l);
+        }
+
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int l = 0; l < nodes.length; l++) {
+            int degree = deps.dependencies.degree(nodes[l]);
+            for (int k = 0; k < degree; k++) {
+                edges.addEdge(l, position[deps.dependencies.neighbour(nodes[l], k)]);
+            }
+        }
+        result.dependencies = edges.build(nodes.length);
+        return result;
+    }
+}
@@ -0,0 +1,386 @@
+package io.github.patrickdoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Symmetric matrix with a zero diagonal, storing only the n(n-1)/2 cells
+// above the diagonal row by row, in the narrowest type that fits
+public abstract class CondensedMatrix implements Closeable {
+
+    // Mapped segments are a power of two below the 2 GB limit of a buffer
+    static final int SEGMENT_BYTES = 1 << 30;
+
+    final int n;
+
+    CondensedMatrix(int n) {
+        this.n = n;
+    }
+
+    public static CondensedMatrix allocate(int n, int maxValue) {
+        long cells = cells(n);
+        if (cells > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many nodes for an in memory distance matrix: " + n);
+        }
+        if (maxValue <= 0xFF) {
+            return new OfByte(n, new byte[(int) cells]);
+        } else if (maxValue <= 0xFFFF) {
+            return new OfChar(n, new char[(int) cells]);
+        } else {
+            return new OfInt(n, new int[(int) cells]);
+        }
+    }
+
+    // For linkages whose updated distances are not whole numbers
+    public static CondensedMatrix allocateFloat(int n) {
+        long cells = cells(n);
+        if (cells > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many nodes for an in memory distance matrix: " + n);
+        }
+        return new OfFloat(n, new float[(int) cells]);
+    }
+
+    // Same layout in a memory mapped file, so only the pages in use take
+    // memory and the page cache decides what stays resident. close()
+    // unmaps it and deletes the file.
+    public static CondensedMatrix map(int n, int maxValue, boolean floating, Path file) throws IOException {
+        return map(n, maxValue, floating, file, SEGMENT_BYTES);
+    }
+
+    static CondensedMatrix map(int n, int maxValue, boolean floating, Path file, int segmentBytes)
+            throws IOException {
+        int cellBytes = floating || maxValue > 0xFFFF ? 4 : maxValue > 0xFF ? 2 : 1;
+        long bytes = cells(n) * cellBytes;
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((bytes + segmentBytes - 1) / segmentBytes)];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int s = 0; s < segments.length; s++) {
+                long start = (long) s * segmentBytes;
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(segmentBytes, bytes - start));
+                segments[s].order(ByteOrder.nativeOrder());
+            }
+        }
+        return new Mapped(n, file, segments, segmentBytes, cellBytes, floating);
+    }
+
+    public static CondensedMatrix fromSquare(int[][] square) {
+        int n = square.length;
+        int maxValue = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                maxValue = Math.max(maxValue, square[i][j]);
+            }
+        }
+
+        CondensedMatrix result = allocate(n, maxValue);
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                result.set(i, j, square[i][j]);
+            }
+        }
+        return result;
+    }
+
+    public static long cells(int n) {
+        return (long) n * (n - 1) / 2;
+    }
+
+    // Position of cell (i, j) for i < j
+    public static long index(int n, int i, int j) {
+        return (long) n * i - (long) i * (i + 1) / 2 + (j - i - 1);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public long index(int i, int j) {
+        return i < j ? index(n, i, j) : index(n, j, i);
+    }
+
+    public int get(int i, int j) {
+        return i == j ? 0 : get(index(i, j));
+    }
+
+    public void set(int i, int j, int value) {
+        set(index(i, j), value);
+    }
+
+    public double getDouble(int i, int j) {
+        return i == j ? 0 : getDouble(index(i, j));
+    }
+
+    public void setDouble(int i, int j, double value) {
+        setDouble(index(i, j), value);
+    }
+
+    public double getDouble(long index) {
+        return get(index);
+    }
+
+    public void setDouble(long index, double value) {
+        set(index, (int) Math.round(value));
+    }
+
+    public long sizeInBytes() {
+        return cells(n) * bytesPerCell();
+    }
+
+    // Heap matrices are left to the garbage collector
+    @Override
+    public void close() {
+    }
+
+    public abstract int bytesPerCell();
+
+    public abstract int get(long index);
+
+    public abstract void set(long index, int value);
+
+    static class OfByte extends CondensedMatrix {
+        final byte[] cells;
+
+        OfByte(int n, byte[] cells) {
+            super(n);
+            this.cells = cells;
+        }
+
+        @Override
+        public int bytesPerCell() {
+            return 1;
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index] & 0xFF;
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = (byte) value;
+        }
+    }
+
+    static class OfChar extends CondensedMatrix {
+        final char[] cells;
+
+        OfChar(int n, char[] cells) {
+            super(n);
+            this.cells = cells;
+        }
+
+        @Override
+        public int bytesPerCell() {
+            return 2;
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = (char) value;
+        }
+    }
+
+    static class OfInt extends CondensedMatrix {
+        final int[] cells;
+
+        OfInt(int n, int[] cells) {
+            super(n);
+            this.cells = cells;
+        }
+
+        @Override
+        public int bytesPerCell() {
+            return 4;
+        }
+
+        @Override
+        public int get(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = value;
+        }
+    }
+
+    static class OfFloat extends CondensedMatrix {
+        final float[] cells;
+
+        OfFloat(int n, float[] cells) {
+            super(n);
+            this.cells = cells;
+        }
+
+        @Override
+        public int bytesPerCell() {
+            return 4;
+        }
+
+        @Override
+        public int get(long index) {
+            return Math.round(cells[(int) index]);
+        }
+
+        @Override
+        public void set(long index, int value) {
+            cells[(int) index] = value;
+        }
+
+        @Override
+        public double getDouble(long index) {
+            return cells[(int) index];
+        }
+
+        @Override
+        public void setDouble(long index, double value) {
+            cells[(int) index] = (float) value;
+        }
+    }
+
+    static class Mapped extends CondensedMatrix {
+        final Path file;
+        MappedByteBuffer[] segments;
+        final int cellBytes;
+        final boolean floating;
+        final int cellShift;
+        final long cellMask;
+
+        Mapped(int n, Path file, MappedByteBuffer[] segments, int segmentBytes, int cellBytes, boolean floating) {
+            super(n);
+            this.file = file;
+            this.segments = segments;
+            this.cellBytes = cellBytes;
+            this.floating = floating;
+            // Cells per segment is a power of two, so a shift finds the segment
+            this.cellShift = Integer.numberOfTrailingZeros(segmentBytes / cellBytes);
+            this.cellMask = (1L << cellShift) - 1;
+        }
+
+        @Override
+        public int bytesPerCell() {
+            return cellBytes;
+        }
+
+        @Override
+        public int get(long index) {
+            MappedByteBuffer segment = segments[(int) (index >>> cellShift)];
+            int offset = (int) (index & cellMask) * cellBytes;
+            switch (cellBytes) {
+                case 1:
+                    return segment.get(offset) & 0xFF;
+                case 2:
+                    return segment.getChar(offset);
+                default:
+                    return floating ? Math.round(segment.getFloat(offset)) : segment.getInt(offset);
+            }
+        }
+
+        @Override
+        public void set(long index, int value) {
+            MappedByteBuffer segment = segments[(int) (index >>> cellShift)];
+            int offset = (int) (index & cellMask) * cellBytes;
+            switch (cellBytes) {
+                case 1:
+                    segment.put(offset, (byte) value);
+                    break;
+                case 2:
+                    segment.putChar(offset, (char) value);
+                    break;
+                default:
+                    if (floating) {
+                        segment.putFloat(offset, value);
+                    } else {
+                        segment.putInt(offset, value);
+                    }
+            }
+        }
+
+        @Override
+        public double getDouble(long index) {
+            if (!floating) {
+                return get(index);
+            }
+            return segments[(int) (index >>> cellShift)].getFloat((int) (index & cellMask) * cellBytes);
+        }
+
+        @Override
+        public void setDouble(long index, double value) {
+            if (!floating) {
+                set(index, (int) Math.round(value));
+            } else {
+                segments[(int) (index >>> cellShift)].putFloat((int) (index & cellMask) * cellBytes, (float) value);
+            }
+        }
+
+        // A mapping otherwise lives until its buffers are garbage collected,
+        // keeping the file's pages and disk space. The buffers are dropped
+        // first, so a late access fails instead of touching unmapped memory.
+        @Override
+        public void close() {
+            MappedByteBuffer[] unmapping = segments;
+            if (unmapping == null) {
+                return;
+            }
+            segments = null;
+            boolean unmapped = true;
+            for (MappedByteBuffer segment : unmapping) {
+                unmapped &= unmap(segment);
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Still mapped, e.g. on Windows without a cleaner
+                file.toFile().deleteOnExit();
+            }
+            if (!unmapped) {
+                // Without a cleaner the mappings go with the next collection
+                System.gc();
+            }
+        }
+
+        // Unmaps through the JDK's cleaner: Unsafe.invokeCleaner on Java 9+,
+        // DirectBuffer.cleaner().clean() on Java 8
+        private static boolean unmap(ByteBuffer buffer) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return true;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8, or no access
+            }
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    Method clean = cleaner.getClass().getMethod("clean");
+                    clean.setAccessible(true);
+                    clean.invoke(cleaner);
+                    return true;
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // No cleaner available
+            }
+            return false;
+        }
+    }
+}
@@ -10,62 +10,69 @@ import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
+import io.github.classgraph.ClassInfo;
+import io.github.classgraph.ClassInfoList;
+
 public class DependencyMatrix {
 
     public Map<String, Integer> nodeIds = new HashMap<>();
-    public int[][] dependencies;
+    public Adjacency dependencies;
 
     public DependencyMatrix() {
     }
 
-    public static DependencyMatrix fromDotFile(String filePath) throws IOException {
+    public static DependencyMatrix fromClassInfoList(ClassInfoList classes) {
         DependencyMatrix result = new DependencyMatrix();
 
-        Path path = Paths.get(filePath);
+        // Find all node ids, only classes in the list become nodes
+        for (ClassInfo classInfo : classes) {
+            result.nodeIds.put(classInfo.getName(), result.nodeIds.size());
+        }
 
-        // Find all node ids
-        BufferedReader reader = Files.newBufferedReader(path);
-        String line = reader.readLine();
-        while (line != null) {
-            if (line.startsWith("\"")) {
-                String nodeName = line.split("\"", 0)[1];
-                result.nodeIds.put(nodeName, result.nodeIds.size());
-            } else if (line.startsWith("  \"")) {
-                String[] splitLine = line.split("\"", 0);
-                String srcNodeName = splitLine[1];
-                result.nodeIds.computeIfAbsent(srcNodeName, x -> result.nodeIds.size());
-                
-                String destNodeName = splitLine[3];
-                result.nodeIds.computeIfAbsent(destNodeName, x -> result.nodeIds.size());
+        // Record all dependencies, dropping edges that leave the node set
+        // the same way the generated dot file does
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (ClassInfo classInfo : classes) {
+            int srcNodeId = result.nodeIds.get(classInfo.getName());
+            for (ClassInfo dest : classInfo.getClassDependencies()) {
+                Integer destNodeId = result.nodeIds.get(dest.getName());
+                if (destNodeId != null) {
+                    edges.addEdge(srcNodeId, destNodeId);
+                }
             }
-            line = reader.readLine();
         }
-        reader.close();
+        result.dependencies = edges.build(result.nodeIds.size());
+
+        return result;
+    }
+
+    public static DependencyMatrix fromDotFile(String filePath) throws IOException {
+        DependencyMatrix result = new DependencyMatrix();
 
-        // Initialize dependency matrix
-        result.dependencies = new int[result.nodeIds.size()][result.nodeIds.size()];
+        Path path = Paths.get(filePath);
 
-        // Record all dependencies
-        reader = Files.newBufferedReader(path);
-        line = reader.readLine();
-        while (line != null) {
-            if (line.startsWith("  \"")) {
-                String[] splitLine = line.split("\"", 0);
-                String srcNodeName = splitLine[1];
-                int srcNodeId = result.nodeIds.get(srcNodeName);
+        // Find all node ids and record all dependencies in one pass
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line = reader.readLine();
+            while (line != null) {
+                if (line.startsWith("\"")) {
+                    String nodeName = line.split("\"", 0)[1];
+                    result.nodeIds.put(nodeName, result.nodeIds.size());
+                } else if (line.startsWith("  \"")) {
+                    String[] splitLine = line.split("\"", 0);
+                    String srcNodeName = splitLine[1];
+                    int srcNodeId = result.nodeIds.computeIfAbsent(srcNodeName, x -> result.nodeIds.size());
 
-                String destNodeName = splitLine[3];
-                int destNodeId = result.nodeIds.get(destNodeName);
+                    String destNodeName = splitLine[3];
+                    int destNodeId = result.nodeIds.computeIfAbsent(destNodeName, x -> result.nodeIds.size());
 
-                result.dependencies[srcNodeId][destNodeId] = 1;
+                    edges.addEdge(srcNodeId, destNodeId);
+                }
+                line = reader.readLine();
             }
-            line = reader.readLine();
         }
-
-        // Set all nodes to depend on themselves
-        //for (int i = 0; i < result.nodeIds.size(); i++) {
-        //    result.dependencies[i][i] = 1;
-        //}
+        result.dependencies = edges.build(result.nodeIds.size());
 
         return result;
     }
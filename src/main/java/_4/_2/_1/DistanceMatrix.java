@@ -2,40 +2,163 @@ package io.github.patrickdoc;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class DistanceMatrix {
 
+    // Upper bound on the memory spent on bit packed rows
+    public static final long MAX_BIT_ROWS_BYTES = 256L * 1024 * 1024;
+
+    // Rows and columns per tile, small enough that both row blocks of a
+    // tile stay in cache while it is computed
+    public static final int TILE_SIZE = 128;
+
     public Map<String, Integer> nodeIds;
-    public int[][] distances;
+    public CondensedMatrix distances;
 
     public DistanceMatrix() {
     }
 
     public static DistanceMatrix fromDependencyMatrix(DependencyMatrix dependencyMatrix) {
+        return fromDependencyMatrix(dependencyMatrix, 1);
+    }
+
+    // Every cell is computed independently, so the result is identical for
+    // any number of threads. threads <= 0 uses all available processors.
+    public static DistanceMatrix fromDependencyMatrix(DependencyMatrix dependencyMatrix, int threads) {
+        return fromDependencyMatrix(dependencyMatrix, threads, Linkage.COMPLETE);
+    }
+
+    // The linkage decides whether the matrix must hold fractional distances
+    // once clustering starts updating it
+    public static DistanceMatrix fromDependencyMatrix(DependencyMatrix dependencyMatrix, int threads, Linkage linkage) {
+        try {
+            return fromDependencyMatrix(dependencyMatrix, threads, linkage, null, true, new RunMetrics());
+        } catch (IOException e) {
+            // Only mapping a file can fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // With a directory the matrix lives in a memory mapped file there
+    // instead of on the heap. Pool threads record into metrics.
+    public static DistanceMatrix fromDependencyMatrix(DependencyMatrix dependencyMatrix, int threads, Linkage linkage,
+                                                      Path mapDirectory, boolean denseRows, RunMetrics metrics)
+            throws IOException {
         DistanceMatrix result = new DistanceMatrix();
         result.nodeIds = dependencyMatrix.nodeIds;
 
-        result.distances = new int[result.nodeIds.size()][result.nodeIds.size()];
+        // Distances never exceed the number of columns
+        int n = result.nodeIds.size();
+        if (mapDirectory != null) {
+            Files.createDirectories(mapDirectory);
+            Path file = Files.createTempFile(mapDirectory, "distances", ".bin");
+            result.distances = CondensedMatrix.map(n, n, !linkage.preservesValues(), file);
+        } else {
+            result.distances = linkage.preservesValues()
+                ? CondensedMatrix.allocate(n, n)
+                : CondensedMatrix.allocateFloat(n);
+        }
+
+        Adjacency rows = distanceRows(dependencyMatrix.dependencies, denseRows);
+
+        // Split the upper triangle into tiles of row block x column block
+        List<int[]> tiles = new ArrayList<>();
+        for (int rowStart = 0; rowStart < n; rowStart += TILE_SIZE) {
+            for (int colStart = rowStart; colStart < n; colStart += TILE_SIZE) {
+                tiles.add(new int[] {rowStart, colStart});
+            }
+        }
 
-        for (int node1 = 0; node1 < result.nodeIds.size(); node1++) {
-            for (int node2 = node1 + 1; node2 < result.nodeIds.size(); node2++) {
-                int distance = 0;
-                for (int x = 0; x < result.nodeIds.size(); x++) {
-                    if (dependencyMatrix.dependencies[node1][x] != dependencyMatrix.dependencies[node2][x]) {
-                        distance++;
-                    }
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        try {
+            if (parallelism == 1 || tiles.size() == 1) {
+                for (int[] tile : tiles) {
+                    computeTile(rows, result.distances, tile[0], tile[1]);
+                }
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism, metrics.workerFactory(), null, false);
+                try {
+                    pool.invoke(new TileTask(rows, result.distances, tiles, 0, tiles.size()));
+                } finally {
+                    pool.shutdown();
                 }
-                result.distances[node1][node2] = distance;
-                result.distances[node2][node1] = distance;
             }
+        } catch (RuntimeException | Error e) {
+            result.distances.close();
+            throw e;
         }
         return result;
     }
+
+    private static void computeTile(Adjacency rows, CondensedMatrix distances, int rowStart, int colStart) {
+        int n = distances.size();
+        int rowEnd = Math.min(rowStart + TILE_SIZE, n);
+        int colEnd = Math.min(colStart + TILE_SIZE, n);
+        for (int node1 = rowStart; node1 < rowEnd; node1++) {
+            int node2 = Math.max(colStart, node1 + 1);
+            long index = CondensedMatrix.index(n, node1, node2);
+            for (; node2 < colEnd; node2++) {
+                distances.set(index++, rows.hamming(node1, node2));
+            }
+        }
+    }
+
+    private static class TileTask extends RecursiveAction {
+        final Adjacency rows;
+        final CondensedMatrix distances;
+        final List<int[]> tiles;
+        final int start;
+        final int end;
+
+        TileTask(Adjacency rows, CondensedMatrix distances, List<int[]> tiles, int start, int end) {
+            this.rows = rows;
+            this.distances = distances;
+            this.tiles = tiles;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                int[] tile = tiles.get(start);
+                computeTile(rows, distances, tile[0], tile[1]);
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new TileTask(rows, distances, tiles, start, mid),
+                          new TileTask(rows, distances, tiles, mid, end));
+            }
+        }
+    }
+
+    // A popcount over a packed row handles 64 columns per word, while the
+    // sparse rows pay a branch per dependency. Pack the rows when the graph
+    // is dense enough for that to win and the packed rows stay small.
+    public static Adjacency distanceRows(Adjacency deps) {
+        return distanceRows(deps, true);
+    }
+
+    public static Adjacency distanceRows(Adjacency deps, boolean allowDense) {
+        if (!allowDense || deps instanceof BitAdjacency) {
+            return deps;
+        }
+        int n = deps.size();
+        long words = BitAdjacency.wordsPerRow(n);
+        if (BitAdjacency.sizeInBytes(n) <= MAX_BIT_ROWS_BYTES && words * n <= 8L * deps.edgeCount()) {
+            return BitAdjacency.fromAdjacency(deps);
+        }
+        return deps;
+    }
 }
@@ -0,0 +1,254 @@
+package io.github.patrickdoc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Outgoing class references of every class file on a classpath, kept in a
+// file between runs. Only class files whose size or modification time
+// changed are read again, and a jar is read again as a whole when it changes.
+// Jars are only indexed for classes in the base packages.
+public class ScanCache {
+
+    private static final int VERSION = 2;
+
+    private final Path cacheFile;
+    private String packages = "";
+    // In classpath order, so the first of two classes with the same name wins
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public int reused;
+    public int read;
+
+    private ScanCache(Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public static ScanCache load(Path cacheFile) {
+        ScanCache cache = new ScanCache(cacheFile);
+        if (!Files.isRegularFile(cacheFile)) {
+            return cache;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != VERSION) {
+                return cache;
+            }
+            cache.packages = in.readUTF();
+            int count = in.readInt();
+            for (int e = 0; e < count; e++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                String name = in.readUTF();
+                int refs = in.readInt();
+                Set<String> references = new TreeSet<>();
+                for (int r = 0; r < refs; r++) {
+                    references.add(in.readUTF());
+                }
+                cache.entries.put(path, new Entry(size, modified, name, references));
+            }
+        } catch (IOException e) {
+            // Unreadable or truncated, start over
+            cache.entries = new LinkedHashMap<>();
+        }
+        return cache;
+    }
+
+    public void refresh(Path classesDir) throws IOException {
+        refresh(Collections.singletonList(classesDir), new String[] {""});
+    }
+
+    public void refresh(List<Path> classpath, String[] basePackages) throws IOException {
+        String requested = String.join(",", basePackages);
+        if (!requested.equals(packages)) {
+            // Jars were indexed for other packages
+            entries = new LinkedHashMap<>();
+            packages = requested;
+        }
+
+        Map<String, Entry> current = new LinkedHashMap<>();
+        reused = 0;
+        read = 0;
+        for (Path root : classpath) {
+            if (Files.isDirectory(root)) {
+                refreshDirectory(root, current);
+            } else if (Files.isRegularFile(root)) {
+                refreshJar(root, basePackages, current);
+            }
+        }
+        // Deleted class files and jars simply aren't carried over
+        entries = current;
+    }
+
+    private void refreshDirectory(Path classesDir, Map<String, Entry> current) throws IOException {
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(classesDir)) {
+            classFiles = files.filter(path -> path.getFileName().toString().endsWith(".class"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        for (Path classFile : classFiles) {
+            String key = classFile.toAbsolutePath().toString();
+            BasicFileAttributes attrs = Files.readAttributes(classFile, BasicFileAttributes.class);
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                reused++;
+            } else {
+                ClassFileReader reader = ClassFileReader.read(classFile);
+                entry = new Entry(size, modified, reader.name, reader.references);
+                read++;
+            }
+            current.put(key, entry);
+        }
+    }
+
+    private void refreshJar(Path jar, String[] basePackages, Map<String, Entry> current) throws IOException {
+        // The jar itself is kept as an entry without a name, its classes
+        // under jar!/entry
+        String key = jar.toAbsolutePath().toString();
+        String prefix = key + "!/";
+        BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        Entry marker = entries.get(key);
+        if (marker != null && marker.size == size && marker.modified == modified) {
+            current.put(key, marker);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    current.put(e.getKey(), e.getValue());
+                    reused++;
+                }
+            }
+            return;
+        }
+
+        current.put(key, new Entry(size, modified, "", Collections.<String>emptySet()));
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String name = zipEntry.getName();
+                if (zipEntry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/")
+                        || !inPackages(name.substring(0, name.length() - 6).replace('/', '.'), basePackages)) {
+                    continue;
+                }
+                try (InputStream in = zip.getInputStream(zipEntry)) {
+                    ClassFileReader reader = ClassFileReader.read(in, prefix + name);
+                    current.put(prefix + name, new Entry(size, modified, reader.name, reader.references));
+                    read++;
+                }
+            }
+        }
+    }
+
+    public void save() throws IOException {
+        Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+
+        // Write next to the cache and rename, so an interrupted run can't leave half a file
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(packages);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.name);
+                out.writeInt(entry.references.size());
+                for (String reference : entry.references) {
+                    out.writeUTF(reference);
+                }
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public DependencyMatrix toDependencyMatrix(String[] basePackages) {
+        // Top-level classes in the base packages, ordered by name like a scan result
+        Map<String, Set<String>> classes = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.name.isEmpty() && isTopLevel(entry.name) && inPackages(entry.name, basePackages)) {
+                classes.putIfAbsent(entry.name, entry.references);
+            }
+        }
+
+        DependencyMatrix result = new DependencyMatrix();
+        for (String name : classes.keySet()) {
+            result.nodeIds.put(name, result.nodeIds.size());
+        }
+
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (Map.Entry<String, Set<String>> e : classes.entrySet()) {
+            int srcNodeId = result.nodeIds.get(e.getKey());
+            for (String dest : e.getValue()) {
+                Integer destNodeId = result.nodeIds.get(dest);
+                if (destNodeId != null) {
+                    edges.addEdge(srcNodeId, destNodeId);
+                }
+            }
+        }
+        result.dependencies = edges.build(result.nodeIds.size());
+
+        return result;
+    }
+
+    private static boolean isTopLevel(String name) {
+        String simpleName = name.substring(name.lastIndexOf('.') + 1);
+        return simpleName.indexOf('$') < 0
+            && !simpleName.equals("package-info") && !simpleName.equals("module-info");
+    }
+
+    private static boolean inPackages(String name, String[] basePackages) {
+        String packageName = name.lastIndexOf('.') < 0 ? "" : name.substring(0, name.lastIndexOf('.'));
+        for (String basePackage : basePackages) {
+            if (basePackage.isEmpty() || packageName.equals(basePackage)
+                    || packageName.startsWith(basePackage + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String name;
+        final Set<String> references;
+
+        Entry(long size, long modified, String name, Set<String> references) {
+            this.size = size;
+            this.modified = modified;
+            this.name = name;
+            this.references = references;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.patrickdoc;
+
+import java.util.Arrays;
+
+// Compressed sparse row adjacency: the dependencies of node i are
+// targets[offsets[i]] .. targets[offsets[i + 1] - 1], sorted and unique
+public class SparseAdjacency implements Adjacency {
+
+    final int[] offsets;
+    final int[] targets;
+
+    public SparseAdjacency(int[] offsets, int[] targets) {
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static SparseAdjacency fromEdges(int n, int[] src, int[] dest, int edgeCount) {
+        // Counting sort of the edges by source node
+        int[] offsets = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            offsets[src[e] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] fill = Arrays.copyOf(offsets, n);
+        int[] targets = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            targets[fill[src[e]]++] = dest[e];
+        }
+
+        // Sort each row and drop duplicate edges in place
+        int write = 0;
+        int rowStart = 0;
+        for (int i = 0; i < n; i++) {
+            int rowEnd = offsets[i + 1];
+            Arrays.sort(targets, rowStart, rowEnd);
+            offsets[i] = write;
+            for (int k = rowStart; k < rowEnd; k++) {
+                if (k == rowStart || targets[k] != targets[k - 1]) {
+                    targets[write++] = targets[k];
+                }
+            }
+            rowStart = rowEnd;
+        }
+        offsets[n] = write;
+
+        return new SparseAdjacency(offsets, write == edgeCount ? targets : Arrays.copyOf(targets, write));
+    }
+
+    public static SparseAdjacency fromMatrix(int[][] matrix) {
+        Builder builder = new Builder();
+        for (int y = 0; y < matrix.length; y++) {
+            for (int x = 0; x < matrix[y].length; x++) {
+                if (matrix[y][x] != 0) {
+                    builder.addEdge(y, x);
+                }
+            }
+        }
+        return builder.build(matrix.length);
+    }
+
+    @Override
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    @Override
+    public int edgeCount() {
+        return offsets[offsets.length - 1];
+    }
+
+    @Override
+    public int degree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    @Override
+    public int neighbour(int node, int k) {
+        return targets[offsets[node] + k];
+    }
+
+    @Override
+    public boolean hasEdge(int src, int dest) {
+        return Arrays.binarySearch(targets, offsets[src], offsets[src + 1], dest) >= 0;
+    }
+
+    // Size of the symmetric difference of the two sorted rows
+    @Override
+    public int hamming(int node1, int node2) {
+        int k1 = offsets[node1];
+        int end1 = offsets[node1 + 1];
+        int k2 = offsets[node2];
+        int end2 = offsets[node2 + 1];
+        int shared = 0;
+        while (k1 < end1 && k2 < end2) {
+            int x1 = targets[k1];
+            int x2 = targets[k2];
+            if (x1 == x2) {
+                shared++;
+                k1++;
+                k2++;
+            } else if (x1 < x2) {
+                k1++;
+            } else {
+                k2++;
+            }
+        }
+        return degree(node1) + degree(node2) - 2 * shared;
+    }
+
+    // Collects edges in any order, duplicates are dropped on build
+    public static class Builder {
+        int[] src = new int[16];
+        int[] dest = new int[16];
+        int edgeCount = 0;
+
+        public void addEdge(int from, int to) {
+            if (edgeCount == src.length) {
+                src = Arrays.copyOf(src, 2 * edgeCount);
+                dest = Arrays.copyOf(dest, 2 * edgeCount);
+            }
+            src[edgeCount] = from;
+            dest[edgeCount] = to;
+            edgeCount++;
+        }
+
+        public SparseAdjacency build(int n) {
+            return fromEdges(n, src, dest, edgeCount);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+// Checks the metrics of a scaling run against the committed budget. Budgets
+// are generous on purpose, they catch scaling regressions, not noise.
+import groovy.json.JsonSlurper
+
+def metricsFile = new File(basedir, "target/auto-cluster/metrics.json")
+assert metricsFile.isFile() : "No metrics written to ${metricsFile}"
+def metrics = new JsonSlurper().parse(metricsFile)
+
+def budget = new Properties()
+new File(scalingDir, "budget.properties").withInputStream { budget.load(it) }
+String project = basedir.name
+
+long millis = metrics.totals.millis
+long rssMb = metrics.totals.peakRssBytes >> 20
+println "${project}: ${metrics.counts.nodes} classes, ${metrics.counts.files} files moved, ${millis} ms, ${rssMb} MB peak RSS"
+metrics.stages.each { println "  ${it.name}: ${it.millis} ms" }
+
+assert metrics.counts.nodes == classCount
+assert metrics.counts.files > 0
+
+long maxMillis = budget.getProperty("${project}.millis") as long
+assert millis <= maxMillis : "${project} took ${millis} ms, budget is ${maxMillis} ms"
+
+// Peak RSS is only reported on Linux
+if (metrics.totals.peakRssBytes >= 0) {
+    long maxRssMb = budget.getProperty("${project}.peakRssMb") as long
+    assert rssMb <= maxRssMb : "${project} peaked at ${rssMb} MB RSS, budget is ${maxRssMb} MB"
+}
+return true
@@ -0,0 +1,2 @@
+binding.setVariable("classCount", 2000)
+return new GroovyShell(binding).evaluate(new File(scalingDir, "check-budget.groovy"))
@@ -0,0 +1,60 @@
+// Writes a synthetic code base of `classCount` classes into `basedir`.
+// Classes live in packages of about 25 that group into modules of about 8
+// packages. Most dependencies stay inside the module, targets are picked
+// by preferential attachment so fan-in follows a power law, and every
+// package has a ring of classes that forms a dependency cycle.
+
+def random = new Random(classCount)
+int packageSize = 25
+int modulePackages = 8
+int outDegree = 6
+double localFraction = 0.85
+
+int packages = (classCount + packageSize - 1) / packageSize
+def packageOf = { int c -> c.intdiv(packageSize) }
+def moduleOf = { int c -> packageOf(c).intdiv(modulePackages) }
+def name = { int c -> "io.github.scaling.p${packageOf(c)}.C${c}" }
+
+// Each class appears once plus once per dependent, so a uniform pick from
+// the list favours classes that are already popular
+def endpoints = []
+def moduleEndpoints = [:].withDefault { [] }
+def deps = (0..<classCount).collect { [] as LinkedHashSet }
+
+for (int c = 0; c < classCount; c++) {
+    int module = moduleOf(c)
+    for (int e = 0; e < outDegree && c > 0; e++) {
+        def pool = random.nextDouble() < localFraction && moduleEndpoints[module] ? moduleEndpoints[module] : endpoints
+        int target = pool ? pool[random.nextInt(pool.size())] : random.nextInt(c)
+        if (target != c && deps[c].add(target)) {
+            endpoints << target
+            moduleEndpoints[moduleOf(target)] << target
+        }
+    }
+    endpoints << c
+    moduleEndpoints[module] << c
+}
+
+// Rings of four classes per package, each depending on the next
+for (int p = 0; p < packages; p++) {
+    int first = p * packageSize
+    int last = Math.min(first + 3, classCount - 1)
+    for (int c = first; c < last; c++) {
+        deps[c] << c + 1
+    }
+    if (last > first) {
+        deps[last] << first
+    }
+}
+
+def sources = new File(basedir, "src/main/java")
+for (int c = 0; c < classCount; c++) {
+    def dir = new File(sources, "io/github/scaling/p${packageOf(c)}")
+    dir.mkdirs()
+    def fields = deps[c].withIndex().collect { int d, int i -> "    ${name(d)} d${i};" }.join("\n")
+    new File(dir, "C${c}.java").text =
+        "package io.github.scaling.p${packageOf(c)};\n\npublic class C${c} {\n${fields}\n}\n"
+}
+
+println "Generated ${classCount} classes in ${packages} packages"
+return true
@@ -0,0 +1,46 @@
+package io.github.patrickdoc;
+
+import org.junit.Rule;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+public class DendrogramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripAndFingerprint() throws Exception {
+        DependencyMatrix deps = DependencyMatrix.fromDotFile("src/test/resources/cluster.dot");
+        ClusterOptions options = new ClusterOptions();
+        String fingerprint = DendrogramCache.fingerprint(deps, options, false);
+
+        Hclust result = Hclust.fromDependencyMatrix(deps, options);
+        Path cacheFile = folder.getRoot().toPath().resolve("dendrogram.bin");
+        assertNull(DendrogramCache.load(cacheFile, fingerprint));
+        DendrogramCache.save(cacheFile, fingerprint, result);
+
+        Hclust cached = DendrogramCache.load(cacheFile, fingerprint);
+        assertEquals(result.dendrogram, cached.dendrogram);
+        assertEquals(result.nodeLabels, cached.nodeLabels);
+
+        // Threads don't change the result unless they switch to the parallel
+        // merge, the linkage, the split and the graph do
+        assertEquals(fingerprint, DendrogramCache.fingerprint(deps, options.copy().setThreads(4), false));
+        ClusterOptions parallel = options.copy().setParallelMerge(true);
+        assertEquals(fingerprint, DendrogramCache.fingerprint(deps, parallel.copy().setThreads(1), false));
+        assertNotEquals(fingerprint, DendrogramCache.fingerprint(deps, parallel.copy().setThreads(4), false));
+        assertNotEquals(fingerprint, DendrogramCache.fingerprint(deps, options.copy().setLinkage(Linkage.SINGLE), false));
+        assertNotEquals(fingerprint, DendrogramCache.fingerprint(deps, options, true));
+
+        DependencyMatrix changed = DependencyMatrix.fromDotFile("src/test/resources/cluster.dot");
+        changed.dependencies = SparseAdjacency.fromMatrix(new int[][] {{0, 1, 0}, {1, 0, 1}, {0, 0, 0}});
+        String changedFingerprint = DendrogramCache.fingerprint(changed, options, false);
+        assertNotEquals(fingerprint, changedFingerprint);
+        assertNull(DendrogramCache.load(cacheFile, changedFingerprint));
+    }
+
+}
@@ -3,12 +3,41 @@ package io.github.patrickdoc;
 import org.junit.Rule;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.File;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.project.MavenProject;
+
+import io.github.classgraph.ClassGraph;
+import io.github.classgraph.ClassInfo;
+import io.github.classgraph.ClassInfoList;
+import io.github.classgraph.ScanResult;
 
 public class DependencyMatrixTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testFile() throws Exception {
         DependencyMatrix graph = DependencyMatrix.fromDotFile("src/test/resources/cluster.dot");
@@ -18,8 +47,231 @@ public class DependencyMatrixTest {
             {{0, 0, 0}
             ,{1, 0, 1}
             ,{0, 0, 0}};
-        assertTrue(Arrays.deepEquals(expected, graph.dependencies));
+        assertTrue(Arrays.deepEquals(expected, toMatrix(graph)));
+
+    }
+
+    @Test
+    public void testClassInfoListMatchesDotFile() throws Exception {
+        ClassGraph graph = new ClassGraph();
+        graph.acceptPackages("io.github.patrickdoc");
+        graph.enableInterClassDependencies();
+        graph.overrideClasspath("target/classes");
+
+        try (ScanResult result = graph.scan()) {
+            ClassInfoList classes = DotMojo.topLevelClasses(result);
+
+            Path dotFile = Paths.get("target/dependency-matrix-test.dot");
+            Files.write(dotFile, classes.generateGraphVizDotFileFromInterClassDependencies().getBytes());
+
+            DependencyMatrix fromDot = DependencyMatrix.fromDotFile(dotFile.toString());
+            DependencyMatrix fromScan = DependencyMatrix.fromClassInfoList(classes);
+            Files.delete(dotFile);
+
+            assertEquals(fromDot.nodeIds.keySet(), fromScan.nodeIds.keySet());
+            assertEquals(edges(fromDot), edges(fromScan));
+            assertTrue(edges(fromScan).contains("io.github.patrickdoc.AbstractClusterMojo -> io.github.patrickdoc.Hclust"));
+        }
+    }
+
+    @Test
+    public void testProjectScanDropsDependencyClasses() throws Exception {
+        MavenProject project = projectWithSibling(false);
+        assertEquals(2, project.getRuntimeClasspathElements().size());
 
+        DotMojo dot = new DotMojo();
+        dot.setProject(project);
+        dot.setBasePackages(new String[] {"io.github.patrickdoc"});
+
+        DependencyMatrix fromClasspath;
+        try (ScanResult result = dot.scan()) {
+            fromClasspath = DependencyMatrix.fromClassInfoList(DotMojo.topLevelClasses(result));
+        }
+
+        dot.setScanScope("project");
+        DependencyMatrix fromProject;
+        try (ScanResult result = dot.scan()) {
+            fromProject = DependencyMatrix.fromClassInfoList(DotMojo.topLevelClasses(result));
+        }
+
+        // The project scope only sees the output directory
+        Set<String> expected = new HashSet<>(fromProject.nodeIds.keySet());
+        expected.add("io.github.patrickdoc.Hclust");
+        assertEquals(expected, fromClasspath.nodeIds.keySet());
+        assertTrue(edges(fromClasspath).contains("io.github.patrickdoc.AbstractClusterMojo -> io.github.patrickdoc.Hclust"));
+        assertFalse(edges(fromProject).contains("io.github.patrickdoc.AbstractClusterMojo -> io.github.patrickdoc.Hclust"));
+    }
+
+    @Test
+    public void testScanCacheMatchesClassGraph() throws Exception {
+        ClassGraph graph = new ClassGraph();
+        graph.enableAllInfo();
+        graph.acceptPackages("io.github.patrickdoc");
+        graph.enableInterClassDependencies();
+        graph.overrideClasspath("target/classes");
+
+        DependencyMatrix fromScan;
+        Map<String, String> superclasses = new HashMap<>();
+        try (ScanResult result = graph.scan()) {
+            ClassInfoList classes = DotMojo.topLevelClasses(result);
+            fromScan = DependencyMatrix.fromClassInfoList(classes);
+            for (ClassInfo classInfo : classes) {
+                if (classInfo.getSuperclass() != null) {
+                    superclasses.put(classInfo.getName(), classInfo.getSuperclass().getName());
+                }
+            }
+        }
+
+        Path cacheFile = folder.getRoot().toPath().resolve("scan-cache.bin");
+        ScanCache cache = ScanCache.load(cacheFile);
+        cache.refresh(Paths.get("target/classes"));
+        cache.save();
+        DependencyMatrix fromCache = cache.toDependencyMatrix(new String[] {"io.github.patrickdoc"});
+
+        assertEquals(fromScan.nodeIds, fromCache.nodeIds);
+        Set<String> scanEdges = edges(fromScan);
+        Set<String> cacheEdges = edges(fromCache);
+        assertTrue(scanEdges.containsAll(cacheEdges));
+
+        // ClassGraph also credits a subclass with the types in its superclass's
+        // method signatures, even though the subclass's class file never names them
+        for (String edge : scanEdges) {
+            if (!cacheEdges.contains(edge)) {
+                String[] ends = edge.split(" -> ");
+                assertTrue(edge, scanEdges.contains(superclasses.get(ends[0]) + " -> " + ends[1]));
+            }
+        }
+        assertEquals(0, cache.reused);
+
+        // A second run only reads what changed
+        ScanCache reloaded = ScanCache.load(cacheFile);
+        reloaded.refresh(Paths.get("target/classes"));
+        assertEquals(0, reloaded.read);
+        assertEquals(cacheEdges, edges(reloaded.toDependencyMatrix(new String[] {"io.github.patrickdoc"})));
+    }
+
+    @Test
+    public void testScanCacheReadsClasspathJars() throws Exception {
+        MavenProject project = projectWithSibling(true);
+        DotMojo dot = new DotMojo();
+        dot.setProject(project);
+        dot.setBasePackages(new String[] {"io.github.patrickdoc"});
+
+        DependencyMatrix fromScan;
+        try (ScanResult result = dot.scan()) {
+            fromScan = DependencyMatrix.fromClassInfoList(DotMojo.topLevelClasses(result));
+        }
+
+        List<Path> classpath = new ArrayList<>();
+        for (String element : dot.classpath()) {
+            classpath.add(Paths.get(element));
+        }
+        Path cacheFile = folder.getRoot().toPath().resolve("scan-cache.bin");
+        ScanCache cache = ScanCache.load(cacheFile);
+        cache.refresh(classpath, new String[] {"io.github.patrickdoc"});
+        cache.save();
+        DependencyMatrix fromCache = cache.toDependencyMatrix(new String[] {"io.github.patrickdoc"});
+
+        // Same nodes, including the classes from the jar
+        assertEquals(fromScan.nodeIds.keySet(), fromCache.nodeIds.keySet());
+        assertTrue(fromCache.nodeIds.containsKey("io.github.patrickdoc.Hclust"));
+        assertTrue(edges(fromScan).containsAll(edges(fromCache)));
+        assertTrue(edges(fromCache).contains("io.github.patrickdoc.AbstractClusterMojo -> io.github.patrickdoc.Hclust"));
+
+        // An unchanged jar is reused without opening it
+        ScanCache reloaded = ScanCache.load(cacheFile);
+        reloaded.refresh(classpath, new String[] {"io.github.patrickdoc"});
+        assertEquals(0, reloaded.read);
+        assertEquals(cache.read, reloaded.reused);
+        assertEquals(edges(fromCache), edges(reloaded.toDependencyMatrix(new String[] {"io.github.patrickdoc"})));
+    }
+
+    // Our classes split over the output directory and a dependency that holds
+    // the Hclust classes, as a sibling module would
+    private MavenProject projectWithSibling(boolean jar) throws Exception {
+        Path classes = Paths.get("target/classes");
+        Path output = folder.newFolder("classes").toPath();
+        Path dependency = jar ? folder.getRoot().toPath().resolve("sibling.jar") : folder.newFolder("sibling").toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(classes)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        try (JarOutputStream out = jar ? new JarOutputStream(Files.newOutputStream(dependency)) : null) {
+            for (Path file : files) {
+                String name = classes.relativize(file).toString().replace(File.separatorChar, '/');
+                if (!file.getFileName().toString().startsWith("Hclust")) {
+                    Path target = output.resolve(name);
+                    Files.createDirectories(target.getParent());
+                    Files.copy(file, target);
+                } else if (jar) {
+                    out.putNextEntry(new JarEntry(name));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                } else {
+                    Path target = dependency.resolve(name);
+                    Files.createDirectories(target.getParent());
+                    Files.copy(file, target);
+                }
+            }
+        }
+
+        MavenProject project = new MavenProject();
+        project.getBuild().setOutputDirectory(output.toString());
+        DefaultArtifactHandler handler = new DefaultArtifactHandler("jar");
+        handler.setAddedToClasspath(true);
+        Artifact artifact = new DefaultArtifact("io.github.patrickdoc", "sibling", "1.0", Artifact.SCOPE_COMPILE,
+                                                "jar", null, handler);
+        artifact.setFile(dependency.toFile());
+        project.setArtifacts(Collections.singleton(artifact));
+        return project;
+    }
+
+    private Set<String> edges(DependencyMatrix graph) {
+        String[] names = new String[graph.nodeIds.size()];
+        for (Map.Entry<String, Integer> e : graph.nodeIds.entrySet()) {
+            names[e.getValue()] = e.getKey();
+        }
+
+        Set<String> result = new HashSet<>();
+        for (int y = 0; y < names.length; y++) {
+            for (int x = 0; x < names.length; x++) {
+                if (graph.dependencies.hasEdge(y, x)) {
+                    result.add(names[y] + " -> " + names[x]);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testSparseRows() throws Exception {
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        edges.addEdge(2, 0);
+        edges.addEdge(0, 3);
+        edges.addEdge(0, 1);
+        edges.addEdge(0, 3);
+        SparseAdjacency graph = edges.build(4);
+
+        assertEquals(4, graph.size());
+        assertEquals(3, graph.edgeCount());
+        assertEquals(2, graph.degree(0));
+        assertEquals(1, graph.neighbour(0, 0));
+        assertEquals(3, graph.neighbour(0, 1));
+        assertEquals(0, graph.degree(1));
+        assertTrue(graph.hasEdge(2, 0));
+        assertFalse(graph.hasEdge(0, 2));
+    }
+
+    private int[][] toMatrix(DependencyMatrix graph) {
+        int n = graph.nodeIds.size();
+        int[][] result = new int[n][n];
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                result[y][x] = graph.dependencies.hasEdge(y, x) ? 1 : 0;
+            }
+        }
+        return result;
     }
 
     private void logDependencyMatrix(DependencyMatrix graph) {
@@ -27,7 +279,7 @@ public class DependencyMatrixTest {
             System.out.print("{");
             for (int x = 0; x < graph.nodeIds.size(); x++) {
                 System.out.print(" ");
-                System.out.print(graph.dependencies[y][x]);
+                System.out.print(graph.dependencies.hasEdge(y, x) ? 1 : 0);
             }
             System.out.println(" }");
         }
@@ -3,14 +3,21 @@ package io.github.patrickdoc;
 import org.junit.Rule;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.File;
 
+import java.nio.file.Path;
+
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 public class DistanceMatrixTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testInput() throws Exception {
         DependencyMatrix matrix = new DependencyMatrix();
@@ -25,7 +32,7 @@ public class DistanceMatrixTest {
             {{1, 0, 0}
             ,{1, 1, 1}
             ,{0, 0, 1}};
-        matrix.dependencies = dependencies;
+        matrix.dependencies = SparseAdjacency.fromMatrix(dependencies);
 
         DistanceMatrix dist = DistanceMatrix.fromDependencyMatrix(matrix);
         int[][] expected = new int[][]
@@ -33,7 +40,129 @@ public class DistanceMatrixTest {
             ,{2, 0, 2}
             ,{2, 2, 0}};
         logMatrix(dist);
-        assertTrue(Arrays.deepEquals(expected, dist.distances));
+        assertTrue(Arrays.deepEquals(expected, toSquare(dist.distances)));
+    }
+
+    @Test
+    public void testBitRowsMatchSparseRows() throws Exception {
+        Random random = new Random(42);
+        int n = 150;
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int e = 0; e < 1200; e++) {
+            edges.addEdge(random.nextInt(n), random.nextInt(n));
+        }
+        SparseAdjacency sparse = edges.build(n);
+        BitAdjacency bits = BitAdjacency.fromAdjacency(sparse);
+
+        assertEquals(sparse.edgeCount(), bits.edgeCount());
+        for (int node1 = 0; node1 < n; node1++) {
+            assertEquals(sparse.degree(node1), bits.degree(node1));
+            for (int k = 0; k < sparse.degree(node1); k++) {
+                assertEquals(sparse.neighbour(node1, k), bits.neighbour(node1, k));
+            }
+            for (int node2 = 0; node2 < n; node2++) {
+                assertEquals(sparse.hasEdge(node1, node2), bits.hasEdge(node1, node2));
+                assertEquals(sparse.hamming(node1, node2), bits.hamming(node1, node2));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        Random random = new Random(7);
+        int n = 3 * DistanceMatrix.TILE_SIZE + 17;
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int e = 0; e < 5 * n; e++) {
+            edges.addEdge(random.nextInt(n), random.nextInt(n));
+        }
+        DependencyMatrix matrix = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            matrix.nodeIds.put("n" + i, i);
+        }
+        matrix.dependencies = edges.build(n);
+
+        DistanceMatrix sequential = DistanceMatrix.fromDependencyMatrix(matrix, 1);
+        DistanceMatrix parallel = DistanceMatrix.fromDependencyMatrix(matrix, 4);
+        assertTrue(Arrays.deepEquals(toSquare(sequential.distances), toSquare(parallel.distances)));
+        assertEquals(matrix.dependencies.hamming(5, n - 1), sequential.distances.get(n - 1, 5));
+    }
+
+    @Test
+    public void testCondensedWidth() throws Exception {
+        assertEquals(1, CondensedMatrix.allocate(200, 200).bytesPerCell());
+        assertEquals(2, CondensedMatrix.allocate(300, 300).bytesPerCell());
+        assertEquals(4, CondensedMatrix.allocate(3, 70000).bytesPerCell());
+
+        CondensedMatrix matrix = CondensedMatrix.allocate(4, 255);
+        matrix.set(3, 1, 255);
+        matrix.set(0, 3, 7);
+        assertEquals(255, matrix.get(1, 3));
+        assertEquals(7, matrix.get(3, 0));
+        assertEquals(0, matrix.get(2, 2));
+        assertEquals(5, CondensedMatrix.index(4, 2, 3));
+    }
+
+    @Test
+    public void testMappedMatchesHeap() throws Exception {
+        Random random = new Random(11);
+        int n = 60;
+        for (int maxValue : new int[] {200, 300, 70000}) {
+            // Small segments so cells span several of them
+            CondensedMatrix heap = CondensedMatrix.allocate(n, maxValue);
+            File file = folder.newFile();
+            CondensedMatrix mapped = CondensedMatrix.map(n, maxValue, false, file.toPath(), 64);
+            assertEquals(heap.bytesPerCell(), mapped.bytesPerCell());
+            for (long i = 0; i < CondensedMatrix.cells(n); i++) {
+                int value = random.nextInt(maxValue + 1);
+                heap.set(i, value);
+                mapped.set(i, value);
+            }
+            assertTrue(Arrays.deepEquals(toSquare(heap), toSquare(mapped)));
+
+            // Closing unmaps the segments and deletes the file
+            mapped.close();
+            assertFalse(file.exists());
+        }
+
+        CondensedMatrix heap = CondensedMatrix.allocateFloat(n);
+        CondensedMatrix mapped = CondensedMatrix.map(n, n, true, folder.newFile().toPath(), 64);
+        for (long i = 0; i < CondensedMatrix.cells(n); i++) {
+            double value = random.nextDouble() * n;
+            heap.setDouble(i, value);
+            mapped.setDouble(i, value);
+            assertEquals(heap.getDouble(i), mapped.getDouble(i), 0);
+        }
+        mapped.close();
+
+        // Clustering reads and updates the mapped matrix through the same accessors
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int e = 0; e < 4 * n; e++) {
+            edges.addEdge(random.nextInt(n), random.nextInt(n));
+        }
+        DependencyMatrix deps = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            deps.nodeIds.put("n" + i, i);
+        }
+        deps.dependencies = edges.build(n);
+        Path mapDirectory = folder.newFolder().toPath();
+        for (Linkage linkage : new Linkage[] {Linkage.COMPLETE, Linkage.AVERAGE}) {
+            ClusterOptions options = new ClusterOptions().setLinkage(linkage);
+            assertEquals(Hclust.fromDependencyMatrix(deps, options).dendrogram,
+                         Hclust.fromDependencyMatrix(deps, options.copy().setMapDirectory(mapDirectory)).dendrogram);
+        }
+        // Clustering releases the mapped matrices as soon as it is done
+        assertEquals(0, mapDirectory.toFile().list().length);
+    }
+
+    private int[][] toSquare(CondensedMatrix matrix) {
+        int n = matrix.size();
+        int[][] result = new int[n][n];
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                result[y][x] = matrix.get(y, x);
+            }
+        }
+        return result;
     }
 
     private void logMatrix(DistanceMatrix matrix) {
@@ -41,7 +170,7 @@ public class DistanceMatrixTest {
             System.out.print("{");
             for (int x = 0; x < matrix.nodeIds.size(); x++) {
                 System.out.print(" ");
-                System.out.print(matrix.distances[y][x]);
+                System.out.print(matrix.distances.get(y, x));
             }
             System.out.println(" }");
         }
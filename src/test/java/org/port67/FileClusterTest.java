@@ -3,16 +3,27 @@ package io.github.patrickdoc;
 import org.junit.Rule;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FileClusterTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testInput() throws Exception {
         // actual
@@ -30,38 +41,263 @@ public class FileClusterTest {
         FileCluster cluster = FileCluster.fromHclust(input);
 
         // expected
-        FileCluster.BinaryTree expected = new FileCluster.BinaryTree(2);
+        FileCluster.BinaryTree tree = cluster.tree;
+        System.out.println("actual:");
+        logBinaryTree(tree, tree.root(), 0, true);
 
-        FileCluster.BinaryTree leftCluster = new FileCluster.BinaryTree(0);
-        leftCluster.setLeft(new FileCluster.BinaryTree(-1, "c"));
-        leftCluster.setRight(new FileCluster.BinaryTree(-3, "a"));
-        expected.setLeft(leftCluster);
+        int root = tree.root();
+        assertEquals(2, tree.value(root));
 
-        FileCluster.BinaryTree rightCluster = new FileCluster.BinaryTree(-2, "b");
-        expected.setRight(rightCluster);
+        int leftCluster = tree.left(root);
+        assertEquals(0, tree.value(leftCluster));
+        assertEquals(-1, tree.value(tree.left(leftCluster)));
+        assertEquals("c", tree.name(tree.left(leftCluster)));
+        assertEquals(-3, tree.value(tree.right(leftCluster)));
+        assertEquals("a", tree.name(tree.right(leftCluster)));
 
-        System.out.println("expected:");
-        logBinaryTree(expected, 0, true);
-        System.out.println("actual:");
-        logBinaryTree(cluster.tree, 0, true);
-        assertEquals(expected, cluster.tree);
+        int rightCluster = tree.right(root);
+        assertEquals(-2, tree.value(rightCluster));
+        assertEquals("b", tree.name(rightCluster));
+
+        assertEquals(tree, FileCluster.fromHclust(input).tree);
+    }
+
+    @Test
+    public void testDeepTree() throws Exception {
+        // Chains this deep overflowed the stack when the tree was built recursively
+        FileCluster cluster = FileCluster.fromHclust(chain(200000));
+        assertEquals(cluster.tree, FileCluster.fromHclust(chain(200000)).tree);
+
+        // Paths grow with the depth, so lay out a shorter chain
+        Path root = folder.getRoot().toPath();
+        FileCluster.Layout layout = FileCluster.fromHclust(chain(5000)).layout(SourceIndex.build(root), root);
+        assertEquals(4999, layout.directories.size());
+        assertTrue(layout.files.isEmpty());
+    }
+
+    private static Hclust chain(int n) {
+        Map<Integer, String> nodeLabels = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            nodeLabels.put(i, "p.C" + i);
+        }
+
+        List<Hclust.Triplet> dendrogram = new ArrayList<>();
+        dendrogram.add(new Hclust.Triplet(-n, 1 - n, 1));
+        for (int k = 1; k < n - 1; k++) {
+            dendrogram.add(new Hclust.Triplet(k - 1, k + 1 - n, k + 1));
+        }
+        return new Hclust(dendrogram, nodeLabels);
+    }
+
+    @Test
+    public void testWritePlan() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path sources = root.resolve("src");
+        writeSource(sources, "p/a.java", "p");
+        writeSource(sources, "p/b.java", "p");
+
+        Map<Integer, String> nodeLabels = new HashMap<>();
+        nodeLabels.put(0, "p.a");
+        nodeLabels.put(1, "p.b");
+        nodeLabels.put(2, "p.c");
+        List<Hclust.Triplet> dendrogram = new ArrayList<>();
+        dendrogram.add(new Hclust.Triplet(-1, -3, 0));
+        dendrogram.add(new Hclust.Triplet(0, -2, 2));
+
+        FileCluster cluster = FileCluster.fromHclust(new Hclust(dendrogram, nodeLabels));
+        assertEquals(2, cluster.writePlan(sources, root.resolve("report")));
+
+        List<String> plan = Files.readAllLines(root.resolve("report/plan.csv"));
+        assertEquals("source,target,changed", plan.get(0));
+        assertTrue(plan.contains(sources.resolve("p/a.java") + "," + sources.resolve("_2/_0/a.java") + ",true"));
+        assertEquals(3, plan.size());
+
+        List<String> rows = Files.readAllLines(root.resolve("report/dendrogram.csv"));
+        assertEquals(Arrays.asList("row,left,right,height", "0,p.c,p.a,0", "1,0,p.b,2"), rows);
+
+        // Sources are left untouched
+        assertTrue(Files.exists(sources.resolve("p/a.java")));
+        assertFalse(Files.exists(sources.resolve("_2")));
+    }
+
+    @Test
+    public void testWriteFilesInSourceDirectory() throws Exception {
+        // A module of a reactor build, away from the working directory
+        Path sources = folder.getRoot().toPath().resolve("module/src/main/java");
+        writeSource(sources, "p/a.java", "p");
+        writeSource(sources, "p/b.java", "p");
+
+        Map<Integer, String> nodeLabels = new HashMap<>();
+        nodeLabels.put(0, "p.a");
+        nodeLabels.put(1, "p.b");
+        List<Hclust.Triplet> dendrogram = new ArrayList<>();
+        dendrogram.add(new Hclust.Triplet(-2, -1, 1));
+        FileCluster cluster = FileCluster.fromHclust(new Hclust(dendrogram, nodeLabels));
+
+        // A second preview replaces the first
+        assertEquals(2, cluster.writeFiles(sources, true));
+        assertEquals(2, cluster.writeFiles(sources, true));
+        List<Path> previews;
+        try (Stream<Path> children = Files.list(sources.getParent())) {
+            previews = children.filter(path -> path.getFileName().toString().startsWith("auto-cluster-maven-plugin"))
+                .collect(Collectors.toList());
+        }
+        assertEquals(1, previews.size());
+        assertTrue(Files.exists(previews.get(0).resolve("_1/a.java")));
+
+        assertEquals(2, cluster.writeFiles(sources, false));
+        assertTrue(Files.exists(sources.resolve("_1/b.java")));
+        assertFalse(Files.exists(sources.resolve("p")));
+    }
+
+    @Test
+    public void testSourceIndex() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path byPackage = writeSource(root, "a/b/C.java", "a.b");
+        Path byName = writeSource(root, "_1/D.java", "x.y");
+        writeSource(root, "_2/E.java", "p");
+        Path byDeclaration = writeSource(root, "_3/E.java", "q");
+
+        SourceIndex index = SourceIndex.build(root);
+
+        assertEquals(4, index.size());
+        assertEquals(byPackage, index.find("a.b.C"));
+        assertEquals(byName, index.find("x.y.D"));
+        // A unique file name still has to declare the package
+        assertNull(index.find("w.D"));
+        assertEquals(byDeclaration, index.find("q.E"));
+        assertNull(index.find("r.E"));
+        assertNull(index.find("z.Missing"));
+    }
+
+    @Test
+    public void testCopyAllReportsEveryFailure() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path present = writeSource(root, "src/A.java", "a");
+        Path dest = Files.createDirectories(root.resolve("dest"));
+
+        List<Path[]> copies = new ArrayList<>();
+        copies.add(new Path[] {root.resolve("src/Missing1.java"), dest.resolve("Missing1.java")});
+        copies.add(new Path[] {present, dest.resolve("A.java")});
+        copies.add(new Path[] {root.resolve("src/Missing2.java"), dest.resolve("Missing2.java")});
+
+        try {
+            FileCluster.transferAll(copies, FileCluster::copy, "copy");
+            fail("Expected missing sources to be reported");
+        } catch (IOException e) {
+            assertEquals(2, e.getSuppressed().length);
+        }
+        assertTrue(Files.exists(dest.resolve("A.java")));
+    }
+
+    @Test
+    public void testApplyInPlaceSwapsFiles() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path first = writeSource(root, "a/X.java", "a");
+        Path second = writeSource(root, "b/X.java", "b");
+        Path moved = writeSource(root, "c/Y.java", "c");
+
+        FileCluster.Layout layout = new FileCluster.Layout(root);
+        layout.directories.add(root.resolve("_1"));
+        layout.files.add(new Path[] {first, second});
+        layout.files.add(new Path[] {second, first});
+        layout.files.add(new Path[] {moved, root.resolve("_1/Y.java")});
+
+        assertEquals(3, FileCluster.applyInPlace(layout));
+
+        assertTrue(new String(Files.readAllBytes(first)).contains("package b;"));
+        assertTrue(new String(Files.readAllBytes(second)).contains("package a;"));
+        assertTrue(Files.exists(root.resolve("_1/Y.java")));
+        assertFalse(Files.exists(root.resolve("c")));
+    }
+
+    @Test
+    public void testApplyInPlaceOnlyMovesChangedFiles() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path stable = writeSource(root, "_2/_1/X.java", "a");
+        Path moved = writeSource(root, "_2/_3/Y.java", "b");
+        Files.setLastModifiedTime(stable, FileTime.fromMillis(0));
+
+        FileCluster.Layout layout = new FileCluster.Layout(root);
+        layout.files.add(new Path[] {stable, stable});
+        layout.files.add(new Path[] {moved, root.resolve("_2/_1/Y.java")});
+
+        assertEquals(1, FileCluster.applyInPlace(layout));
+        assertEquals(0, Files.getLastModifiedTime(stable).toMillis());
+        assertTrue(Files.exists(root.resolve("_2/_1/Y.java")));
+        assertFalse(Files.exists(root.resolve("_2/_3")));
+
+        // A second run over the same layout is a no-op
+        layout.files.set(1, new Path[] {root.resolve("_2/_1/Y.java"), root.resolve("_2/_1/Y.java")});
+        assertEquals(0, FileCluster.applyInPlace(layout));
+    }
+
+    @Test(expected = IOException.class)
+    public void testApplyInPlaceRejectsCollisions() throws Exception {
+        Path root = folder.getRoot().toPath();
+        FileCluster.Layout layout = new FileCluster.Layout(root);
+        layout.files.add(new Path[] {writeSource(root, "a/X.java", "a"), root.resolve("X.java")});
+        layout.files.add(new Path[] {writeSource(root, "b/X.java", "b"), root.resolve("X.java")});
+
+        FileCluster.applyInPlace(layout);
+    }
+
+    @Test
+    public void testApplyInPlaceKeepsUnplannedFiles() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path moved = writeSource(root, "a/X.java", "a");
+        Path other = writeSource(root, "b/Y.java", "b");
+        Path unplanned = writeSource(root, "_1/X.java", "c");
+        FileCluster.Layout layout = new FileCluster.Layout(root);
+        layout.files.add(new Path[] {other, root.resolve("_1/Y.java")});
+        layout.files.add(new Path[] {moved, unplanned});
+
+        try {
+            FileCluster.applyInPlace(layout);
+            fail("Expected the unplanned file to stop the run");
+        } catch (IOException e) {
+            assertEquals(1, e.getSuppressed().length);
+        }
+        assertTrue(new String(Files.readAllBytes(unplanned)).contains("package c;"));
+        assertTrue(Files.exists(moved));
+        assertTrue(Files.exists(other));
+        assertFalse(Files.exists(root.resolve("_1/Y.java")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testApplyInPlaceRejectsDuplicateSources() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Path source = writeSource(root, "a/X.java", "a");
+        FileCluster.Layout layout = new FileCluster.Layout(root);
+        layout.files.add(new Path[] {source, root.resolve("_1/X.java")});
+        layout.files.add(new Path[] {source, root.resolve("_2/X.java")});
+
+        FileCluster.applyInPlace(layout);
+    }
+
+    private static Path writeSource(Path root, String path, String packageName) throws Exception {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        String className = file.getFileName().toString().replace(".java", "");
+        Files.write(file, ("// header\npackage " + packageName + ";\n\npublic class " + className + " {}\n").getBytes());
+        return file;
     }
 
-    private static void logBinaryTree(FileCluster.BinaryTree tree, int indent, boolean applyIndent) {
+    private static void logBinaryTree(FileCluster.BinaryTree tree, int node, int indent, boolean applyIndent) {
         if (applyIndent) {
             for (int i = 0; i < indent; i++) {
                 System.out.print(" ");
             }
         }
 
-        String output = "{" + tree.value + ", " + tree.name + "} ";
+        String output = "{" + tree.value(node) + ", " + tree.name(node) + "} ";
 
-        if (tree.name != null) {
+        if (tree.isLeaf(node)) {
             System.out.println(output);
         } else {
             System.out.print(output);
-            logBinaryTree(tree.left, indent + output.length(), false);
-            logBinaryTree(tree.right, indent + output.length(), true);
+            logBinaryTree(tree, tree.left(node), indent + output.length(), false);
+            logBinaryTree(tree, tree.right(node), indent + output.length(), true);
         }
     }
 }
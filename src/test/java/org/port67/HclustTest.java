@@ -7,9 +7,14 @@ import java.io.File;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class HclustTest {
 
@@ -27,7 +32,7 @@ public class HclustTest {
             {{0, 1, 1}
             ,{1, 0, 1}
             ,{0, 1, 0}};
-        matrix.dependencies = dependencies;
+        matrix.dependencies = SparseAdjacency.fromMatrix(dependencies);
 
         DistanceMatrix dist = DistanceMatrix.fromDependencyMatrix(matrix);
 
@@ -59,16 +64,16 @@ public class HclustTest {
             ,{1, 0, 0, 0, 1}
             ,{1, 0, 0, 0, 1}
             ,{1, 1, 1, 1, 0}};
-        dist.distances = distances;
+        dist.distances = CondensedMatrix.fromSquare(distances);
 
         Hclust result = Hclust.fromDistanceMatrix(dist);
         logTriplets(result.dendrogram);
 
         List<Hclust.Triplet> expected = new ArrayList<>();
         expected.add(new Hclust.Triplet(-3, -4 , 0));
-        expected.add(new Hclust.Triplet(0, -2, 0));
-        expected.add(new Hclust.Triplet(-1, -5, 1));
-        expected.add(new Hclust.Triplet(2, 1, 1));
+        expected.add(new Hclust.Triplet(-2, 0, 0));
+        expected.add(new Hclust.Triplet(1, -5, 1));
+        expected.add(new Hclust.Triplet(2, -1, 1));
 
         assertEquals(expected, result.dendrogram);
     }
@@ -91,20 +96,339 @@ public class HclustTest {
             ,{0, 0, 0, 0, 0}
             ,{0, 0, 0, 0, 0}
             ,{1, 0, 0, 0, 0}};
-        dist.distances = distances;
+        dist.distances = CondensedMatrix.fromSquare(distances);
 
         Hclust result = Hclust.fromDistanceMatrix(dist);
         logTriplets(result.dendrogram);
 
         List<Hclust.Triplet> expected = new ArrayList<>();
         expected.add(new Hclust.Triplet(-4, -5, 0));
-        expected.add(new Hclust.Triplet(-2, -3, 0));
-        expected.add(new Hclust.Triplet(1, -1, 0));
-        expected.add(new Hclust.Triplet(2, 0, 1));
+        expected.add(new Hclust.Triplet(0, -3, 0));
+        expected.add(new Hclust.Triplet(1, -2, 0));
+        expected.add(new Hclust.Triplet(2, -1, 1));
 
         assertEquals(expected, result.dendrogram);
     }
 
+    @Test
+    public void testCentroid() throws Exception {
+        // Points 0, 1 and 3 on a line, as squared distances
+        CondensedMatrix distances = CondensedMatrix.allocateFloat(3);
+        distances.setDouble(0, 1, 1);
+        distances.setDouble(0, 2, 9);
+        distances.setDouble(1, 2, 4);
+
+        List<Hclust.Triplet> result = Hclust.genericCore(3, distances, Linkage.CENTROID);
+        logTriplets(result);
+
+        List<Hclust.Triplet> expected = new ArrayList<>();
+        expected.add(new Hclust.Triplet(-3, -2, 1));
+        expected.add(new Hclust.Triplet(0, -1, 6));
+
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testNnChainTieBreaking() throws Exception {
+        // Few distinct distances, so most steps have to break ties
+        Random random = new Random(1);
+        for (int iter = 0; iter < 300; iter++) {
+            int n = 1 + random.nextInt(40);
+            int range = 1 + random.nextInt(6);
+            int[][] square = new int[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    square[i][j] = square[j][i] = random.nextInt(range);
+                }
+            }
+            assertEquals(referenceNnChain(n, square), Hclust.nnChainCore(n, CondensedMatrix.fromSquare(square)));
+        }
+    }
+
+    @Test
+    public void testGenericMatchesNnChain() throws Exception {
+        Random random = new Random(3);
+        for (Linkage linkage : new Linkage[] {Linkage.SINGLE, Linkage.COMPLETE, Linkage.AVERAGE, Linkage.WARD}) {
+            // Few distinct distances where the updates keep them exact, so
+            // most merges break ties, and distinct ones where they round
+            boolean ties = linkage.preservesValues();
+            int n = 60;
+            CondensedMatrix chainDistances = CondensedMatrix.allocateFloat(n);
+            CondensedMatrix genericDistances = CondensedMatrix.allocateFloat(n);
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    double d = ties ? random.nextInt(5) : 1000 * random.nextDouble();
+                    chainDistances.setDouble(i, j, d);
+                    genericDistances.setDouble(i, j, d);
+                }
+            }
+
+            List<Hclust.Triplet> chain = Hclust.nnChainCore(n, chainDistances, linkage);
+            List<Hclust.Triplet> generic = Hclust.genericCore(n, genericDistances, linkage);
+            assertWellFormed(n, generic);
+            assertEquals(linkage.toString(), clusters(n, chain), clusters(n, generic));
+        }
+    }
+
+    @Test
+    public void testParallelMergeMatchesNnChain() throws Exception {
+        Random random = new Random(13);
+        for (Linkage linkage : new Linkage[] {Linkage.SINGLE, Linkage.COMPLETE, Linkage.AVERAGE, Linkage.WARD}) {
+            // Distinct distances far apart, so no two merges round to the
+            // same height and the normalized order is unique
+            int n = 300;
+            List<Integer> values = new ArrayList<>();
+            for (int v = 1; v <= n * (n - 1) / 2; v++) {
+                values.add(1000 * v);
+            }
+            Collections.shuffle(values, random);
+            CondensedMatrix chainDistances = CondensedMatrix.allocateFloat(n);
+            CondensedMatrix rnnDistances = CondensedMatrix.allocateFloat(n);
+            int next = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    int d = values.get(next++);
+                    chainDistances.setDouble(i, j, d);
+                    rnnDistances.setDouble(i, j, d);
+                }
+            }
+
+            List<Hclust.Triplet> chain = Hclust.nnChainCore(n, chainDistances, linkage);
+            List<Hclust.Triplet> rnn = Hclust.rnnCore(n, rnnDistances, linkage, 4);
+            assertWellFormed(n, rnn);
+            // Updates applied in a different order round differently in float
+            List<Hclust.Triplet> expected = Hclust.normalize(chain);
+            List<Hclust.Triplet> actual = Hclust.normalize(rnn);
+            for (int row = 0; row < n - 1; row++) {
+                assertEquals(linkage + " row " + row, expected.get(row).a, actual.get(row).a);
+                assertEquals(linkage + " row " + row, expected.get(row).b, actual.get(row).b);
+                assertEquals(expected.get(row).distance, actual.get(row).distance, 1e-6 * expected.get(row).distance + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMergeWithTies() throws Exception {
+        // Only linkages that keep the integer distances are exact, the others
+        // can round two equal distances apart in different merge orders
+        Random random = new Random(17);
+        for (Linkage linkage : new Linkage[] {Linkage.SINGLE, Linkage.COMPLETE}) {
+            int n = 200;
+            CondensedMatrix chainDistances = CondensedMatrix.allocate(n, 3);
+            CondensedMatrix rnnDistances = CondensedMatrix.allocate(n, 3);
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    int d = random.nextInt(4);
+                    chainDistances.set(i, j, d);
+                    rnnDistances.set(i, j, d);
+                }
+            }
+
+            List<Hclust.Triplet> chain = Hclust.nnChainCore(n, chainDistances, linkage);
+            List<Hclust.Triplet> rnn = Hclust.rnnCore(n, rnnDistances, linkage, 3);
+            assertWellFormed(n, rnn);
+            assertEquals(linkage.toString(), clusters(n, chain), clusters(n, rnn));
+        }
+    }
+
+    @Test
+    public void testSingleLinkageSpanningTree() throws Exception {
+        Random random = new Random(5);
+        int n = 80;
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int e = 0; e < 4 * n; e++) {
+            edges.addEdge(random.nextInt(n), random.nextInt(n));
+        }
+        DependencyMatrix matrix = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            matrix.nodeIds.put("n" + i, i);
+        }
+        matrix.dependencies = edges.build(n);
+
+        Hclust mst = Hclust.fromDependencyMatrix(matrix, new ClusterOptions().setLinkage(Linkage.SINGLE));
+        List<Hclust.Triplet> chain = Hclust.nnChainCore(n, DistanceMatrix.fromDependencyMatrix(matrix).distances,
+                                                        Linkage.SINGLE);
+
+        // Single linkage joins everything within a height regardless of the
+        // order, so only the groups at each height are unique
+        assertWellFormed(n, mst.dendrogram);
+        assertEquals(partitions(n, chain), partitions(n, mst.dendrogram));
+    }
+
+    @Test
+    public void testComponents() throws Exception {
+        Random random = new Random(11);
+        int n = 90;
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        // Three islands of 30 nodes plus a few isolated ones at the end
+        for (int e = 0; e < 150; e++) {
+            int island = 30 * random.nextInt(3);
+            edges.addEdge(island + random.nextInt(27), island + random.nextInt(27));
+        }
+        DependencyMatrix matrix = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            matrix.nodeIds.put("n" + i, i);
+        }
+        matrix.dependencies = edges.build(n);
+
+        Components components = Components.of(matrix.dependencies);
+        assertTrue(components.count() >= 3 + 9);
+        assertEquals(components.component[0], components.component[26]);
+        assertNotEquals(components.component[0], components.component[30]);
+
+        for (Linkage linkage : Linkage.values()) {
+            Hclust result = Hclust.fromComponents(matrix, new ClusterOptions().setLinkage(linkage).setThreads(2));
+            assertWellFormed(n, result.dendrogram);
+        }
+    }
+
+    @Test
+    public void testLinkageNames() throws Exception {
+        assertEquals(Linkage.WARD, Linkage.fromName(" Ward"));
+        try {
+            Linkage.fromName("furthest");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("complete"));
+        }
+    }
+
+    // The straightforward nearest neighbour chain with complete linkage over
+    // a set of active ids, with merged clusters taking fresh ids. Ties go to
+    // the cluster with the smallest largest leaf, as in Hclust.nnChainCore.
+    private List<Hclust.Triplet> referenceNnChain(int n, int[][] square) {
+        int[][] dist = new int[2 * n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(square[i], 0, dist[i], 0, n);
+        }
+        int[] top = new int[2 * n];
+        TreeSet<Integer> active = new TreeSet<>();
+        for (int i = 0; i < n; i++) {
+            active.add(i);
+            top[i] = i;
+        }
+
+        List<Hclust.Triplet> result = new ArrayList<>();
+        int[] chain = new int[n];
+        int chainIx = 0;
+        int next = n;
+        while (active.size() > 1) {
+            int idx1;
+            int idx2;
+            int min;
+            if (chainIx <= 3) {
+                idx1 = active.first();
+                chain[0] = idx1;
+                chainIx = 1;
+                idx2 = active.higher(idx1);
+                min = dist[idx1][idx2];
+                for (int i : active.tailSet(idx2, false)) {
+                    if (dist[idx1][i] < min || dist[idx1][i] == min && top[i] < top[idx2]) {
+                        min = dist[idx1][i];
+                        idx2 = i;
+                    }
+                }
+            } else {
+                chainIx -= 3;
+                idx1 = chain[chainIx - 1];
+                idx2 = chain[chainIx];
+                min = dist[idx1][idx2];
+            }
+
+            do {
+                chain[chainIx] = idx2;
+                for (int i : active) {
+                    if (i != idx2 && (dist[i][idx2] < min || dist[i][idx2] == min && top[i] < top[idx1])) {
+                        min = dist[i][idx2];
+                        idx1 = i;
+                    }
+                }
+                idx2 = idx1;
+                idx1 = chain[chainIx++];
+            } while (idx2 != chain[chainIx - 2]);
+
+            result.add(new Hclust.Triplet(idx1 - n, idx2 - n, min));
+            active.remove(idx1);
+            active.remove(idx2);
+            for (int i : active) {
+                dist[i][next] = dist[next][i] = Math.max(dist[i][idx1], dist[i][idx2]);
+            }
+            top[next] = Math.max(top[idx1], top[idx2]);
+            active.add(next++);
+        }
+        return result;
+    }
+
+    // Each cluster as its sorted leaves and height, which doesn't depend on
+    // the order the merges were made in
+    private Set<String> clusters(int n, List<Hclust.Triplet> triplets) {
+        List<TreeSet<Integer>> leaves = new ArrayList<>();
+        Set<String> result = new HashSet<>();
+        for (Hclust.Triplet t : triplets) {
+            TreeSet<Integer> cluster = new TreeSet<>();
+            for (int child : new int[] {t.a, t.b}) {
+                if (child < 0) {
+                    cluster.add(child + n);
+                } else {
+                    cluster.addAll(leaves.get(child));
+                }
+            }
+            leaves.add(cluster);
+            result.add(cluster + "@" + t.distance);
+        }
+        return result;
+    }
+
+    // The groups of leaves after all merges up to each height, each leaf
+    // labelled by the smallest leaf in its group
+    private List<String> partitions(int n, List<Hclust.Triplet> triplets) {
+        int[] leaf = new int[triplets.size()];
+        List<int[]> pairs = new ArrayList<>();
+        for (int row = 0; row < triplets.size(); row++) {
+            Hclust.Triplet t = triplets.get(row);
+            int a = t.a < 0 ? t.a + n : leaf[t.a];
+            int b = t.b < 0 ? t.b + n : leaf[t.b];
+            leaf[row] = a;
+            pairs.add(new int[] {a, b, t.distance});
+        }
+        pairs.sort((p1, p2) -> Integer.compare(p1[2], p2[2]));
+
+        List<String> result = new ArrayList<>();
+        Hclust.UnionFind u = new Hclust.UnionFind(n);
+        for (int k = 0; k < pairs.size(); k++) {
+            u.union(u.find(pairs.get(k)[0]), u.find(pairs.get(k)[1]));
+            if (k + 1 < pairs.size() && pairs.get(k + 1)[2] == pairs.get(k)[2]) {
+                continue;
+            }
+            int[] smallest = new int[2 * n];
+            Arrays.fill(smallest, -1);
+            int[] labels = new int[n];
+            for (int i = 0; i < n; i++) {
+                int root = u.find(i);
+                if (smallest[root] < 0) {
+                    smallest[root] = i;
+                }
+                labels[i] = smallest[root];
+            }
+            result.add(pairs.get(k)[2] + ": " + Arrays.toString(labels));
+        }
+        return result;
+    }
+
+    // Every leaf and every earlier merge is used exactly once
+    private void assertWellFormed(int n, List<Hclust.Triplet> triplets) {
+        assertEquals(n - 1, triplets.size());
+        boolean[] used = new boolean[2 * n - 1];
+        for (int row = 0; row < triplets.size(); row++) {
+            Hclust.Triplet t = triplets.get(row);
+            for (int child : new int[] {t.a, t.b}) {
+                assertTrue(child < row);
+                assertFalse(used[child + n]);
+                used[child + n] = true;
+            }
+        }
+    }
+
     private void logTriplets(List<Hclust.Triplet> triplets) {
         for (Hclust.Triplet t : triplets) {
             System.out.println("(" + t.a + ", " + t.b + ", " + t.distance + ")");
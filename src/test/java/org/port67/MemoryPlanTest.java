@@ -0,0 +1,62 @@
+package io.github.patrickdoc;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.List;
+
+public class MemoryPlanTest {
+
+    @Test
+    public void testCandidates() throws Exception {
+        // Two disconnected components of 300 nodes, sparse enough for sparse rows
+        int n = 600;
+        SparseAdjacency.Builder edges = new SparseAdjacency.Builder();
+        for (int i = 1; i < n; i++) {
+            if (i != n / 2) {
+                edges.addEdge(i - 1, i);
+            }
+        }
+        DependencyMatrix deps = new DependencyMatrix();
+        for (int i = 0; i < n; i++) {
+            deps.nodeIds.put("n" + i, i);
+        }
+        deps.dependencies = edges.build(n);
+        ClusterOptions options = new ClusterOptions().setThreads(1);
+
+        // Without allowSplit only exact clustering is considered
+        List<MemoryPlan> exactOnly = MemoryPlan.candidates(deps, options, false, false, false);
+        assertEquals(2, exactOnly.size());
+        assertNull(MemoryPlan.choose(exactOnly, exactOnly.get(0).heapBytes - 1, 0));
+
+        List<MemoryPlan> candidates = MemoryPlan.candidates(deps, options, false, true, false);
+        assertEquals(4, candidates.size());
+        MemoryPlan exact = MemoryPlan.choose(candidates, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertFalse(exact.split);
+        assertFalse(exact.mapped);
+        assertEquals(CondensedMatrix.cells(n) * 2, exact.heapBytes - candidates.get(1).heapBytes);
+
+        MemoryPlan mapped = MemoryPlan.choose(candidates, exact.heapBytes - 1, Long.MAX_VALUE);
+        assertFalse(mapped.split);
+        assertTrue(mapped.mapped);
+        assertEquals(CondensedMatrix.cells(n) * 2, mapped.fileBytes);
+
+        MemoryPlan split = MemoryPlan.choose(candidates, exact.heapBytes - 1, 0);
+        assertTrue(split.split);
+        assertFalse(split.mapped);
+        assertTrue(split.heapBytes < exact.heapBytes);
+
+        assertNull(MemoryPlan.choose(candidates, 1024, 0));
+        assertTrue(MemoryPlan.candidates(deps, options, true, false, true).get(0).split);
+        // Single linkage has no matrix to map
+        List<MemoryPlan> single = MemoryPlan.candidates(deps, options.copy().setLinkage(Linkage.SINGLE), false, true,
+                                                        true);
+        assertEquals(2, single.size());
+        assertFalse(single.get(0).mapped);
+
+        assertEquals(512L << 20, MemoryPlan.parseBytes("512m"));
+        assertEquals(2L << 30, MemoryPlan.parseBytes(" 2G "));
+        assertEquals(1000, MemoryPlan.parseBytes("1000"));
+    }
+
+}
@@ -1,12 +1,15 @@
 package io.github.patrickdoc;
 
 
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.testing.MojoRule;
 import org.apache.maven.plugin.testing.WithoutMojo;
+import org.apache.maven.project.MavenProject;
 
 import org.junit.Rule;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import java.io.File;
 
 public class MyMojoTest {
@@ -44,6 +47,28 @@ public class MyMojoTest {
 
     }
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The no-fork goals fail before scanning when nothing has been compiled. */
+    @WithoutMojo
+    @Test
+    public void testNoForkRequiresCompiledClasses() throws Exception {
+        MavenProject project = new MavenProject();
+        File classes = folder.newFolder("classes");
+        project.getBuild().setOutputDirectory(classes.getPath());
+
+        try {
+            AbstractDotMojo.requireCompiledClasses(project);
+            fail("Expected missing classes to be reported");
+        } catch (MojoFailureException e) {
+            assertTrue(e.getMessage().contains("No compiled classes"));
+        }
+
+        new File(classes, "A.class").createNewFile();
+        AbstractDotMojo.requireCompiledClasses(project);
+    }
+
     /** Do not need the MojoRule. */
     @WithoutMojo
     @Test
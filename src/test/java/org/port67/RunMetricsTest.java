@@ -0,0 +1,67 @@
+package io.github.patrickdoc;
+
+import org.junit.Rule;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class RunMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStages() throws Exception {
+        DependencyMatrix deps = DependencyMatrix.fromDotFile("src/test/resources/cluster.dot");
+        RunMetrics metrics = new RunMetrics();
+        Hclust.fromDependencyMatrix(deps, new ClusterOptions().setMetrics(metrics));
+        metrics.count("nodes", 3);
+
+        List<String> lines = metrics.lines();
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("distanceMatrix"));
+        assertTrue(lines.get(1).startsWith("clustering"));
+
+        // Pool threads count even after they ended, threads of another run
+        // don't, and an inner stage doesn't hide the peak from the stage
+        // around it
+        RunMetrics pooled = new RunMetrics();
+        RunMetrics other = new RunMetrics();
+        long[][] garbage = new long[2][];
+        try (RunMetrics.Stage outer = pooled.stage("outer")) {
+            Thread worker = pooled.threadFactory().newThread(() -> garbage[0] = new long[4 << 20]);
+            worker.start();
+            worker.join();
+            Thread stranger = other.threadFactory().newThread(() -> garbage[1] = new long[16 << 20]);
+            stranger.start();
+            stranger.join();
+            try (RunMetrics.Stage inner = pooled.stage("inner")) {
+                garbage[0] = null;
+                garbage[1] = null;
+            }
+        }
+        Matcher outer = Pattern.compile("\"outer\", \"millis\": \\d+, \"allocatedBytes\": (-?\\d+), "
+                                        + "\"peakHeapBytes\": (\\d+)").matcher(pooled.toJson());
+        Matcher inner = Pattern.compile("\"inner\", \"millis\": \\d+, \"allocatedBytes\": -?\\d+, "
+                                        + "\"peakHeapBytes\": (\\d+)").matcher(pooled.toJson());
+        assertTrue(outer.find());
+        assertTrue(inner.find());
+        long allocated = Long.parseLong(outer.group(1));
+        assertTrue(allocated < 0 || allocated >= 32L << 20 && allocated < 96L << 20);
+        assertTrue(Long.parseLong(outer.group(2)) >= Long.parseLong(inner.group(1)));
+
+        Path file = folder.getRoot().toPath().resolve("report/metrics.json");
+        metrics.write(file);
+        String json = new String(Files.readAllBytes(file));
+        assertTrue(json.contains("{\"name\": \"clustering\", \"millis\": "));
+        assertTrue(json.contains("\"nodes\": 3"));
+        assertTrue(json.contains("\"peakHeapScope\": \"jvm\""));
+    }
+}